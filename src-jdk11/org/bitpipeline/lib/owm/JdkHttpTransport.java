@@ -0,0 +1,104 @@
+package org.bitpipeline.lib.owm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+/** An {@link OwmTransport} over the java.net.http HttpClient of the JDK.
+ * The client prefers HTTP/2, so concurrent requests to an https server are multiplexed over
+ * a single connection instead of each waiting for a connection of their own. Against an
+ * http:// base URL, such as the default OWM one, it only offers an h2c upgrade and usually
+ * stays on HTTP/1.1. Servers that only speak HTTP/1.1 are still supported.
+ * It needs Java 11, so it is kept out of the default build in the src-jdk11 folder. */
+public class JdkHttpTransport implements OwmTransport {
+	static private final long DEFAULT_CONNECT_TIMEOUT = 5000; // milliseconds
+	static private final long DEFAULT_REQUEST_TIMEOUT = 15000; // milliseconds
+
+	private final HttpClient httpClient;
+	private final Duration requestTimeout;
+
+	public JdkHttpTransport () {
+		this (HttpClient.newBuilder ()
+				.version (HttpClient.Version.HTTP_2)
+				.connectTimeout (Duration.ofMillis (JdkHttpTransport.DEFAULT_CONNECT_TIMEOUT))
+				.build (),
+				Duration.ofMillis (JdkHttpTransport.DEFAULT_REQUEST_TIMEOUT));
+	}
+
+	/** @param httpClient is the client sending the requests
+	 * @param requestTimeout is how long to wait for the headers of a response */
+	public JdkHttpTransport (HttpClient httpClient, Duration requestTimeout) {
+		if (httpClient == null)
+			throw new IllegalArgumentException ("Can't construct a JdkHttpTransport with a null HttpClient");
+		this.httpClient = httpClient;
+		this.requestTimeout = requestTimeout;
+	}
+
+	@Override
+	public Response get (String url, Map<String, String> headers, Deadline deadline) throws IOException {
+		deadline.check ("sending " + url);
+		HttpRequest.Builder request = HttpRequest.newBuilder (URI.create (url)).GET ();
+		Duration timeout = this.requestTimeout;
+		if (deadline.isFinite ()) {
+			Duration remaining = Duration.ofNanos (Math.max (1, deadline.remainingNanos ()));
+			if (timeout == null || remaining.compareTo (timeout) < 0)
+				timeout = remaining;
+		}
+		if (timeout != null)
+			request.timeout (timeout);
+		for (Map.Entry<String, String> header : headers.entrySet ())
+			request.header (header.getKey (), header.getValue ());
+		final HttpResponse<InputStream> response;
+		try {
+			response = this.httpClient.send (request.build (), HttpResponse.BodyHandlers.ofInputStream ());
+		} catch (InterruptedException e) {
+			Thread.currentThread ().interrupt ();
+			throw new InterruptedIOException ("Interrupted while waiting for the OWM server");
+		}
+		/* Closing the body unblocks a read waiting for more of it */
+		final ScheduledFuture<?> abortAtDeadline = deadline.whenExpired (() -> JdkHttpTransport.closeQuietly (response.body ()));
+		return new Response () {
+			@Override
+			public int getStatusCode () {
+				return response.statusCode ();
+			}
+
+			@Override
+			public String getHeader (String name) {
+				return response.headers ().firstValue (name).orElse (null);
+			}
+
+			@Override
+			public InputStream getBody () {
+				return response.body ();
+			}
+
+			@Override
+			public void close () {
+				if (abortAtDeadline != null)
+					abortAtDeadline.cancel (false);
+				JdkHttpTransport.closeQuietly (response.body ());
+			}
+
+			@Override
+			public void abort () {
+				close ();
+			}
+		};
+	}
+
+	static private void closeQuietly (InputStream body) {
+		try {
+			body.close ();
+		} catch (IOException e) {
+			// nothing left to release
+		}
+	}
+}
@@ -1,8 +1,5 @@
 package org.bitpipeline.lib.owm;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import org.json.JSONObject;
 
 abstract class AbstractOwmResponse {
@@ -60,15 +57,42 @@ abstract class AbstractOwmResponse {
 		return this.calctime;
 	}
 
+	/** Find the value of a part of a calctime string such as "tick = 0.01 fetch = 0.02 total=0.06".
+	 * The string is scanned in place, as <code>part\s*=\s*([\d.]*)</code> would match it, without
+	 * compiling a pattern for each response.
+	 * @param calcTimeStr is the calctime string
+	 * @param part is the name of the part
+	 * @return the digits and dots after the first "part =" found, possibly empty; null if there is none */
 	static String getValueStrFromCalcTimePart (final String calcTimeStr, final String part) {
-		Pattern keyValuePattern = Pattern.compile (part + "\\s*=\\s*([\\d\\.]*)");
-		Matcher matcher = keyValuePattern.matcher (calcTimeStr);
-		if (matcher.find () && matcher.groupCount () == 1) {
-			return matcher.group (1);
+		int length = calcTimeStr.length ();
+		for (int start = calcTimeStr.indexOf (part); start >= 0; start = calcTimeStr.indexOf (part, start + 1)) {
+			int i = AbstractOwmResponse.skipWhitespace (calcTimeStr, start + part.length ());
+			if (i < length && calcTimeStr.charAt (i) == '=') {
+				int valueStart = AbstractOwmResponse.skipWhitespace (calcTimeStr, i + 1);
+				int valueEnd = valueStart;
+				while (valueEnd < length && AbstractOwmResponse.isValueChar (calcTimeStr.charAt (valueEnd)))
+					valueEnd++;
+				return calcTimeStr.substring (valueStart, valueEnd);
+			}
 		}
 		return null;
 	}
 
+	/** @return the index of the first character from <code>index</code> on that isn't whitespace, as <code>\s</code> */
+	static private int skipWhitespace (String str, int index) {
+		while (index < str.length ()) {
+			char c = str.charAt (index);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\u000B' && c != '\f' && c != '\r')
+				break;
+			index++;
+		}
+		return index;
+	}
+
+	static private boolean isValueChar (char c) {
+		return (c >= '0' && c <= '9') || c == '.';
+	}
+
 	static float getValueFromCalcTimeStr (final String calcTimeStr, final String part) {
 		if (calcTimeStr == null || calcTimeStr.length () == 0)
 			return Float.NaN;
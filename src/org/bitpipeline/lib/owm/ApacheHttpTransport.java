@@ -0,0 +1,85 @@
+package org.bitpipeline.lib.owm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+/** An {@link OwmTransport} over an Apache HttpClient, speaking HTTP/1.1.
+ * Concurrent requests each take a connection of the client's pool.
+ * @see OwmClient#createPooledHttpClient(int, int, int, int) */
+public class ApacheHttpTransport implements OwmTransport {
+	private final HttpClient httpClient;
+
+	/** @param httpClient is the client sending the requests. It must not decompress the
+	 * 	responses itself, as OwmClient negotiates compression to count the bytes received. */
+	public ApacheHttpTransport (HttpClient httpClient) {
+		if (httpClient == null)
+			throw new IllegalArgumentException ("Can't construct a ApacheHttpTransport with a null HttpClient");
+		this.httpClient = httpClient;
+	}
+
+	@Override
+	public Response get (String url, Map<String, String> headers, Deadline deadline) throws IOException {
+		deadline.check ("sending " + url);
+		final HttpGet httpget = new HttpGet (url);
+		for (Map.Entry<String, String> header : headers.entrySet ())
+			httpget.addHeader (header.getKey (), header.getValue ());
+		final ScheduledFuture<?> abortAtDeadline = deadline.whenExpired (httpget::abort);
+		final HttpResponse response;
+		try {
+			response = this.httpClient.execute (httpget);
+		} catch (IOException | RuntimeException e) {
+			ApacheHttpTransport.cancel (abortAtDeadline);
+			throw e;
+		}
+		if (response.getStatusLine () == null) {
+			ApacheHttpTransport.cancel (abortAtDeadline);
+			EntityUtils.consumeQuietly (response.getEntity ());
+			throw new IOException ("Unable to get a response from OWM server");
+		}
+		return new Response () {
+			@Override
+			public int getStatusCode () {
+				return response.getStatusLine ().getStatusCode ();
+			}
+
+			@Override
+			public String getHeader (String name) {
+				Header header = response.getFirstHeader (name);
+				return header != null ? header.getValue () : null;
+			}
+
+			@Override
+			public InputStream getBody () throws IOException {
+				HttpEntity entity = response.getEntity ();
+				return entity != null ? entity.getContent () : null;
+			}
+
+			@Override
+			public void close () {
+				/* Drain whatever is left so the connection can go back to the pool */
+				EntityUtils.consumeQuietly (response.getEntity ());
+				ApacheHttpTransport.cancel (abortAtDeadline);
+			}
+
+			@Override
+			public void abort () {
+				httpget.abort ();
+				ApacheHttpTransport.cancel (abortAtDeadline);
+			}
+		};
+	}
+
+	static private void cancel (ScheduledFuture<?> action) {
+		if (action != null)
+			action.cancel (false);
+	}
+}
@@ -0,0 +1,209 @@
+package org.bitpipeline.lib.owm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Writes and reads a {@link ForecastSeries} in a compact binary format, so that saved
+ * forecasts can be loaded without parsing JSON. All numbers are big-endian:
+ * <pre>
+ * header      int magic "HWFS", short version, short slot record size,
+ *             int slot count, int condition count, int condition table size
+ * table       per distinct condition: short OWM id, then main, description and icon,
+ *             each as an unsigned short byte length and its UTF-8 bytes
+ * slots       per slot, a fixed-width record: long dt, float temp, temp_min, temp_max,
+ *             pressure, humidity, wind speed, wind gust, int wind deg, clouds, rain, snow,
+ *             int index of the slot's first condition
+ * conditions  per condition of the slots, in order: unsigned short index in the table
+ * </pre>
+ * A file of another version is refused, so that the caller can fall back to the JSON. */
+public final class BinaryForecastIO {
+	static private final int MAGIC = 0x48574653;
+	static private final short VERSION = 1;
+	static private final short RECORD_BYTES = 56;
+	static private final int HEADER_BYTES = 20;
+	static private final int MAX_TABLE_SIZE = 0xFFFF;
+
+	private BinaryForecastIO () {
+	}
+
+	/** Write a series in the binary format
+	 * @param series is the series to write
+	 * @param out is the stream to write it to, flushed but not closed
+	 * @throws IOException if the series can't be written */
+	static public void write (ForecastSeries series, OutputStream out) throws IOException {
+		int size = series.size ();
+		int conditionCount = 0;
+		for (int i = 0; i < size; i++)
+			conditionCount += series.getConditionCount (i);
+
+		// The few distinct conditions are written once; the slots refer to them by index
+		List<WeatherData.WeatherCondition> table = new ArrayList<WeatherData.WeatherCondition> ();
+		List<Short> tableIds = new ArrayList<Short> ();
+		int[] refs = new int[conditionCount];
+		int ref = 0;
+		for (int i = 0; i < size; i++) {
+			for (int k = 0; k < series.getConditionCount (i); k++)
+				refs[ref++] = BinaryForecastIO.tableIndex (table, tableIds, series.getConditionId (i, k), series.getCondition (i, k));
+		}
+
+		DataOutputStream data = new DataOutputStream (new BufferedOutputStream (out));
+		data.writeInt (BinaryForecastIO.MAGIC);
+		data.writeShort (BinaryForecastIO.VERSION);
+		data.writeShort (BinaryForecastIO.RECORD_BYTES);
+		data.writeInt (size);
+		data.writeInt (conditionCount);
+		data.writeInt (table.size ());
+		for (int t = 0; t < table.size (); t++) {
+			WeatherData.WeatherCondition condition = table.get (t);
+			data.writeShort (tableIds.get (t));
+			BinaryForecastIO.writeString (data, condition.getMain ());
+			BinaryForecastIO.writeString (data, condition.getDescription ());
+			BinaryForecastIO.writeString (data, condition.getIconName ());
+		}
+		int conditionStart = 0;
+		for (int i = 0; i < size; i++) {
+			data.writeLong (series.getDateTime (i));
+			data.writeFloat (series.getTemp (i));
+			data.writeFloat (series.getTempMin (i));
+			data.writeFloat (series.getTempMax (i));
+			data.writeFloat (series.getPressure (i));
+			data.writeFloat (series.getHumidity (i));
+			data.writeFloat (series.getWindSpeed (i));
+			data.writeFloat (series.getWindGust (i));
+			data.writeInt (series.getWindDeg (i));
+			data.writeInt (series.getClouds (i));
+			data.writeInt (series.getRain (i));
+			data.writeInt (series.getSnow (i));
+			data.writeInt (conditionStart);
+			conditionStart += series.getConditionCount (i);
+		}
+		for (int r = 0; r < conditionCount; r++)
+			data.writeShort (refs[r]);
+		data.flush ();
+	}
+
+	static private int tableIndex (List<WeatherData.WeatherCondition> table, List<Short> tableIds,
+			short id, WeatherData.WeatherCondition condition) throws IOException {
+		for (int t = 0; t < table.size (); t++) {
+			if (table.get (t) == condition && tableIds.get (t) == id)
+				return t;
+		}
+		if (table.size () >= BinaryForecastIO.MAX_TABLE_SIZE)
+			throw new IOException ("Too many distinct weather conditions for the binary format");
+		table.add (condition);
+		tableIds.add (id);
+		return table.size () - 1;
+	}
+
+	static private void writeString (DataOutputStream data, String str) throws IOException {
+		byte[] bytes = str.getBytes (StandardCharsets.UTF_8);
+		if (bytes.length > 0xFFFF)
+			throw new IOException ("A weather condition text is too long for the binary format");
+		data.writeShort (bytes.length);
+		data.write (bytes);
+	}
+
+	/** Read a series written by {@link #write(ForecastSeries, OutputStream)}
+	 * @param buffer holds the series from its position on; the position isn't changed
+	 * @return the series read
+	 * @throws IOException if the buffer doesn't hold a series of this version, or is truncated */
+	static public ForecastSeries read (ByteBuffer buffer) throws IOException {
+		ByteBuffer in = buffer.duplicate ().order (ByteOrder.BIG_ENDIAN);
+		try {
+			if (in.getInt () != BinaryForecastIO.MAGIC)
+				throw new IOException ("Not a binary forecast");
+			short version = in.getShort ();
+			if (version != BinaryForecastIO.VERSION)
+				throw new IOException ("Unsupported binary forecast version " + version);
+			if (in.getShort () != BinaryForecastIO.RECORD_BYTES)
+				throw new IOException ("Unexpected binary forecast slot size");
+			int size = in.getInt ();
+			int conditionCount = in.getInt ();
+			int tableSize = in.getInt ();
+			if (size < 0 || conditionCount < 0 || tableSize < 0 || tableSize > BinaryForecastIO.MAX_TABLE_SIZE)
+				throw new IOException ("Corrupt binary forecast header");
+
+			short[] tableIds = new short[tableSize];
+			WeatherData.WeatherCondition[] table = new WeatherData.WeatherCondition[tableSize];
+			for (int t = 0; t < tableSize; t++) {
+				tableIds[t] = in.getShort ();
+				String main = BinaryForecastIO.readString (in);
+				String description = BinaryForecastIO.readString (in);
+				String iconName = BinaryForecastIO.readString (in);
+				table[t] = WeatherData.WeatherCondition.valueOf (
+						WeatherData.WeatherCondition.ConditionCode.valueof (tableIds[t]), main, description, iconName);
+			}
+			// Checked before allocating, so that a corrupt count can't ask for a huge array
+			if ((long) size * BinaryForecastIO.RECORD_BYTES + 2L * conditionCount != in.remaining ())
+				throw new IOException ("Binary forecast of the wrong length");
+
+			long[] dateTime = new long[size];
+			float[] temp = new float[size];
+			float[] tempMin = new float[size];
+			float[] tempMax = new float[size];
+			float[] pressure = new float[size];
+			float[] humidity = new float[size];
+			float[] windSpeed = new float[size];
+			float[] windGust = new float[size];
+			int[] windDeg = new int[size];
+			int[] clouds = new int[size];
+			int[] rain = new int[size];
+			int[] snow = new int[size];
+			int[] conditionStart = new int[size + 1];
+			for (int i = 0; i < size; i++) {
+				dateTime[i] = in.getLong ();
+				temp[i] = in.getFloat ();
+				tempMin[i] = in.getFloat ();
+				tempMax[i] = in.getFloat ();
+				pressure[i] = in.getFloat ();
+				humidity[i] = in.getFloat ();
+				windSpeed[i] = in.getFloat ();
+				windGust[i] = in.getFloat ();
+				windDeg[i] = in.getInt ();
+				clouds[i] = in.getInt ();
+				rain[i] = in.getInt ();
+				snow[i] = in.getInt ();
+				conditionStart[i] = in.getInt ();
+				if (conditionStart[i] < (i > 0 ? conditionStart[i - 1] : 0) || conditionStart[i] > conditionCount)
+					throw new IOException ("Corrupt binary forecast slot " + i);
+			}
+			conditionStart[size] = conditionCount;
+
+			short[] conditionId = new short[conditionCount];
+			WeatherData.WeatherCondition[] conditions = new WeatherData.WeatherCondition[conditionCount];
+			for (int r = 0; r < conditionCount; r++) {
+				int index = in.getShort () & 0xFFFF;
+				if (index >= tableSize)
+					throw new IOException ("Corrupt binary forecast condition " + r);
+				conditionId[r] = tableIds[index];
+				conditions[r] = table[index];
+			}
+			return new ForecastSeries (dateTime, temp, tempMin, tempMax, pressure, humidity, windSpeed, windGust,
+					windDeg, clouds, rain, snow, conditionStart, conditionId, conditions);
+		} catch (BufferUnderflowException e) {
+			throw new IOException ("Truncated binary forecast", e);
+		}
+	}
+
+	static private String readString (ByteBuffer in) {
+		int length = in.getShort () & 0xFFFF;
+		if (length > in.remaining ())
+			throw new BufferUnderflowException ();
+		if (in.hasArray ()) {
+			String str = new String (in.array (), in.arrayOffset () + in.position (), length, StandardCharsets.UTF_8);
+			in.position (in.position () + length);
+			return str;
+		}
+		byte[] bytes = new byte[length];
+		in.get (bytes);
+		return new String (bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,130 @@
+package org.bitpipeline.lib.owm;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/** Stops sending requests to the OWM server while it keeps failing.
+ * After a number of consecutive failures the breaker opens and requests fail straight
+ * away. Once the open period is over a single trial request is let through: if it works
+ * the breaker closes again, otherwise it stays open for another period. */
+public class CircuitBreaker {
+	static public enum State {
+		/** Requests are sent normally */
+		CLOSED,
+		/** Requests fail without being sent */
+		OPEN,
+		/** A trial request is being sent to check if the server recovered */
+		HALF_OPEN
+	}
+
+	/** Notified whenever the breaker changes state */
+	public interface Listener {
+		void stateChanged (State from, State to);
+	}
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener> ();
+	private int failureThreshold;
+	private long openNanos;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures = 0;
+	private long openedAt = 0;
+	private boolean trialInFlight = false;
+
+	/**
+	 * @param failureThreshold is the number of consecutive failures that opens the breaker
+	 * @param openMillis is how long the breaker stays open before a trial request */
+	public CircuitBreaker (int failureThreshold, long openMillis) {
+		configure (failureThreshold, openMillis);
+	}
+
+	/**
+	 * @param failureThreshold is the number of consecutive failures that opens the breaker
+	 * @param openMillis is how long the breaker stays open before a trial request */
+	public synchronized void configure (int failureThreshold, long openMillis) {
+		if (failureThreshold < 1)
+			throw new IllegalArgumentException ("The failure threshold must be at least 1");
+		this.failureThreshold = failureThreshold;
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos (openMillis);
+	}
+
+	public void addListener (Listener listener) {
+		this.listeners.add (listener);
+	}
+
+	public void removeListener (Listener listener) {
+		this.listeners.remove (listener);
+	}
+
+	public synchronized State getState () {
+		return this.state;
+	}
+
+	/** @return true if a request may be sent now; a request allowed while half open is the
+	 * 	trial and must report its outcome */
+	boolean allowRequest () {
+		State from;
+		synchronized (this) {
+			from = this.state;
+			switch (this.state) {
+				case CLOSED:
+					return true;
+				case OPEN:
+					if (System.nanoTime () - this.openedAt < this.openNanos)
+						return false;
+					this.state = State.HALF_OPEN;
+					this.trialInFlight = true;
+					break;
+				case HALF_OPEN:
+				default:
+					if (this.trialInFlight)
+						return false;
+					this.trialInFlight = true;
+					return true;
+			}
+		}
+		notifyListeners (from, State.HALF_OPEN);
+		return true;
+	}
+
+	void recordSuccess () {
+		State from;
+		synchronized (this) {
+			from = this.state;
+			this.consecutiveFailures = 0;
+			this.trialInFlight = false;
+			this.state = State.CLOSED;
+		}
+		if (from != State.CLOSED)
+			notifyListeners (from, State.CLOSED);
+	}
+
+	void recordFailure () {
+		State from;
+		synchronized (this) {
+			from = this.state;
+			this.consecutiveFailures++;
+			this.trialInFlight = false;
+			if (this.state == State.HALF_OPEN
+					|| (this.state == State.CLOSED && this.consecutiveFailures >= this.failureThreshold)) {
+				this.state = State.OPEN;
+				this.openedAt = System.nanoTime ();
+			}
+			if (from == this.state)
+				return;
+		}
+		notifyListeners (from, State.OPEN);
+	}
+
+	/** Report that an allowed request ended without telling whether the server works,
+	 * e.g. because it was interrupted */
+	synchronized void recordAbandoned () {
+		this.trialInFlight = false;
+	}
+
+	private void notifyListeners (State from, State to) {
+		for (Listener listener : this.listeners)
+			listener.stateChanged (from, to);
+	}
+}
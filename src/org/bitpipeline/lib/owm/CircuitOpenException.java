@@ -0,0 +1,14 @@
+package org.bitpipeline.lib.owm;
+
+import java.io.IOException;
+
+/** Signals that a query was not sent because the OWM server has been failing and the
+ * circuit breaker of the client is open.
+ * @see CircuitBreaker */
+public class CircuitOpenException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public CircuitOpenException (String message) {
+		super (message);
+	}
+}
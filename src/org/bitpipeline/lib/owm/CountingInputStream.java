@@ -0,0 +1,54 @@
+package org.bitpipeline.lib.owm;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** An input stream that counts the bytes read through it. */
+class CountingInputStream extends FilterInputStream {
+	private long count = 0;
+
+	CountingInputStream (InputStream in) {
+		super (in);
+	}
+
+	long getCount () {
+		return this.count;
+	}
+
+	/** Read, and count, whatever is left of the stream */
+	void drain () throws IOException {
+		byte[] buffer = new byte[1024];
+		while (read (buffer, 0, buffer.length) >= 0) {
+			// counted by read
+		}
+	}
+
+	@Override
+	public int read () throws IOException {
+		int b = super.read ();
+		if (b != -1)
+			this.count++;
+		return b;
+	}
+
+	@Override
+	public int read (byte[] buffer, int offset, int length) throws IOException {
+		int n = super.read (buffer, offset, length);
+		if (n > 0)
+			this.count += n;
+		return n;
+	}
+
+	@Override
+	public long skip (long n) throws IOException {
+		long skipped = super.skip (n);
+		this.count += skipped;
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported () {
+		return false;
+	}
+}
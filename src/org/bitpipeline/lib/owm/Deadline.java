@@ -0,0 +1,149 @@
+package org.bitpipeline.lib.owm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** The point in time by which a query must be answered, passed down from the caller to
+ * every step of the query: waiting for the rate limit, retries and the HTTP request itself,
+ * which is aborted when the deadline passes. */
+public final class Deadline {
+	static private final Deadline NONE = new Deadline (0, false);
+
+	/** Aborts the requests whose deadline passed; built on first use */
+	static private class Timer {
+		static private final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor (1, runnable -> {
+			Thread thread = new Thread (runnable, "owm-deadline");
+			thread.setDaemon (true);
+			return thread;
+		});
+
+		static {
+			Timer.EXECUTOR.setRemoveOnCancelPolicy (true);
+		}
+	}
+
+	/** Lets a deadline be passed early, e.g. to abort the request that lost a hedged race */
+	static private class Cancellation {
+		private boolean cancelled = false;
+		private List<Runnable> actions = new ArrayList<Runnable> ();
+
+		synchronized boolean isCancelled () {
+			return this.cancelled;
+		}
+
+		/** @return false if already cancelled, in which case the action isn't kept */
+		synchronized boolean add (Runnable action) {
+			if (this.cancelled)
+				return false;
+			this.actions.add (action);
+			return true;
+		}
+
+		/** @return the actions to run, or null if already cancelled */
+		synchronized List<Runnable> cancel () {
+			if (this.cancelled)
+				return null;
+			this.cancelled = true;
+			List<Runnable> toRun = this.actions;
+			this.actions = null;
+			return toRun;
+		}
+	}
+
+	private final long expiresAt; // System.nanoTime ()
+	private final boolean finite;
+	private final Cancellation cancellation;
+
+	private Deadline (long expiresAt, boolean finite) {
+		this (expiresAt, finite, null);
+	}
+
+	private Deadline (long expiresAt, boolean finite, Cancellation cancellation) {
+		this.expiresAt = expiresAt;
+		this.finite = finite;
+		this.cancellation = cancellation;
+	}
+
+	/** @param millis is the time, in milliseconds, from now until the deadline
+	 * @return the deadline */
+	static public Deadline after (long millis) {
+		return new Deadline (System.nanoTime () + TimeUnit.MILLISECONDS.toNanos (millis), true);
+	}
+
+	/** @return a deadline that never passes */
+	static public Deadline none () {
+		return Deadline.NONE;
+	}
+
+	/** @return a deadline passing at the same time as this one, or earlier if it is cancelled */
+	Deadline cancellable () {
+		return new Deadline (this.expiresAt, this.finite, new Cancellation ());
+	}
+
+	/** Pass a deadline made by {@link #cancellable()} now, running the actions waiting for it */
+	void cancel () {
+		List<Runnable> actions = this.cancellation.cancel ();
+		if (actions != null) {
+			for (Runnable action : actions)
+				action.run ();
+		}
+	}
+
+	/** @return false if the deadline never passes */
+	public boolean isFinite () {
+		return this.finite;
+	}
+
+	/** @return the time left, in nanoseconds, 0 or less once the deadline passed, or
+	 * 	Long.MAX_VALUE if it never passes */
+	public long remainingNanos () {
+		if (this.cancellation != null && this.cancellation.isCancelled ())
+			return 0;
+		if (!this.finite)
+			return Long.MAX_VALUE;
+		return this.expiresAt - System.nanoTime ();
+	}
+
+	/** @return the time left, in milliseconds, 0 or less once the deadline passed, or
+	 * 	Long.MAX_VALUE if it never passes */
+	public long remainingMillis () {
+		long remaining = remainingNanos ();
+		if (remaining == Long.MAX_VALUE)
+			return Long.MAX_VALUE;
+		return TimeUnit.NANOSECONDS.toMillis (remaining);
+	}
+
+	/** @return true once the deadline passed */
+	public boolean isExpired () {
+		return (this.finite || this.cancellation != null) && remainingNanos () <= 0;
+	}
+
+	/** @param what describes what can't be done any more, for the message of the exception
+	 * @throws DeadlineExceededException if the deadline passed */
+	public void check (String what) throws DeadlineExceededException {
+		if (isExpired ())
+			throw new DeadlineExceededException ("Deadline passed before " + what);
+	}
+
+	/** Run an action, such as aborting a request, when the deadline passes
+	 * @param action is the action to run
+	 * @return the scheduled action, to cancel once it's not needed any more, or null if
+	 * 	the deadline only passes when cancelled, or never */
+	public ScheduledFuture<?> whenExpired (Runnable action) {
+		if (this.cancellation != null && !this.cancellation.add (action)) {
+			action.run ();
+			return null;
+		}
+		if (!this.finite)
+			return null;
+		return Timer.EXECUTOR.schedule (action, Math.max (0, remainingNanos ()), TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public String toString () {
+		return this.finite ? "in " + remainingMillis () + "ms" : "none";
+	}
+}
@@ -0,0 +1,14 @@
+package org.bitpipeline.lib.owm;
+
+import java.io.InterruptedIOException;
+
+/** Signals that a query was given up because its deadline passed before the OWM server
+ * answered.
+ * @see Deadline */
+public class DeadlineExceededException extends InterruptedIOException {
+	private static final long serialVersionUID = 1L;
+
+	public DeadlineExceededException (String message) {
+		super (message);
+	}
+}
@@ -0,0 +1,350 @@
+package org.bitpipeline.lib.owm;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/** The slots of a weather response kept in parallel arrays, one per field, rather than
+ * as a {@link StatusWeatherData} object graph per slot. Scans over a field, such as the
+ * temperatures of a forecast, read one array instead of following references.
+ * Values missing from the response are <code>Float.NaN</code> for decimals and
+ * <code>Integer.MIN_VALUE</code> (<code>Long.MIN_VALUE</code> for times) otherwise.
+ * The weather conditions of slot <code>i</code> are the entries
+ * <code>conditionStart[i]</code> to <code>conditionStart[i + 1]</code> of the condition arrays.
+ * {@link #asList()} gives the slots as {@link StatusWeatherData} for callers that still need them. */
+public class ForecastSeries {
+	static private final String JSON_DATE_TIME = "dt";
+	static private final String JSON_MAIN = "main";
+	static private final String JSON_TEMP = "temp";
+	static private final String JSON_TEMP_MIN = "temp_min";
+	static private final String JSON_TEMP_MAX = "temp_max";
+	static private final String JSON_PRESSURE = "pressure";
+	static private final String JSON_HUMIDITY = "humidity";
+	static private final String JSON_WIND = "wind";
+	static private final String JSON_SPEED = "speed";
+	static private final String JSON_DEG = "deg";
+	static private final String JSON_GUST = "gust";
+	static private final String JSON_CLOUDS = "clouds";
+	static private final String JSON_ALL = "all";
+	static private final String JSON_RAIN = "rain";
+	static private final String JSON_SNOW = "snow";
+	static private final String JSON_LAST_HOUR = "1h";
+	static private final String JSON_WEATHER = "weather";
+	static private final String JSON_ID = "id";
+	static private final String JSON_DESCRIPTION = "description";
+	static private final String JSON_ICON = "icon";
+	/** The condition id kept for ids that aren't OWM condition codes */
+	static private final short UNKNOWN_ID = -1;
+
+	private final int size;
+	private final long[] dateTime;
+	private final float[] temp;
+	private final float[] tempMin;
+	private final float[] tempMax;
+	private final float[] pressure;
+	private final float[] humidity;
+	private final float[] windSpeed;
+	private final float[] windGust;
+	private final int[] windDeg;
+	private final int[] clouds;
+	private final int[] rain;
+	private final int[] snow;
+	private final int[] conditionStart;
+	private final short[] conditionId;
+	private final WeatherData.WeatherCondition[] conditions;
+	private final StatusWeatherData[] statusCache;
+
+	/** Read the slots of a weather response, such as a forecast
+	 * @param json is the JSON of the response, with the slots in its "list" */
+	public ForecastSeries (JSONObject json) {
+		JSONArray list = json.optJSONArray (AbstractOwmResponse.JSON_LIST);
+		int count = 0;
+		int conditions = 0;
+		if (list != null) {
+			for (int i = 0; i < list.length (); i++) {
+				JSONObject slot = list.optJSONObject (i);
+				if (slot != null) {
+					count++;
+					JSONArray weather = slot.optJSONArray (ForecastSeries.JSON_WEATHER);
+					if (weather != null)
+						conditions += weather.length ();
+				}
+			}
+		}
+
+		this.size = count;
+		this.dateTime = new long[count];
+		this.temp = new float[count];
+		this.tempMin = new float[count];
+		this.tempMax = new float[count];
+		this.pressure = new float[count];
+		this.humidity = new float[count];
+		this.windSpeed = new float[count];
+		this.windGust = new float[count];
+		this.windDeg = new int[count];
+		this.clouds = new int[count];
+		this.rain = new int[count];
+		this.snow = new int[count];
+		this.conditionStart = new int[count + 1];
+		this.conditionId = new short[conditions];
+		this.conditions = new WeatherData.WeatherCondition[conditions];
+		this.statusCache = new StatusWeatherData[count];
+
+		int index = 0;
+		int condition = 0;
+		for (int i = 0; list != null && i < list.length (); i++) {
+			JSONObject slot = list.optJSONObject (i);
+			if (slot == null)
+				continue;
+			this.dateTime[index] = slot.optLong (ForecastSeries.JSON_DATE_TIME, Long.MIN_VALUE);
+			readMain (index, slot.optJSONObject (ForecastSeries.JSON_MAIN));
+			readWind (index, slot.optJSONObject (ForecastSeries.JSON_WIND));
+			JSONObject jsonClouds = slot.optJSONObject (ForecastSeries.JSON_CLOUDS);
+			this.clouds[index] = jsonClouds != null ? jsonClouds.optInt (ForecastSeries.JSON_ALL, Integer.MIN_VALUE) : Integer.MIN_VALUE;
+			this.rain[index] = ForecastSeries.readPrecipitation (slot.optJSONObject (ForecastSeries.JSON_RAIN));
+			this.snow[index] = ForecastSeries.readPrecipitation (slot.optJSONObject (ForecastSeries.JSON_SNOW));
+
+			this.conditionStart[index] = condition;
+			JSONArray weather = slot.optJSONArray (ForecastSeries.JSON_WEATHER);
+			for (int k = 0; weather != null && k < weather.length (); k++) {
+				JSONObject jsonCondition = weather.optJSONObject (k);
+				if (jsonCondition == null)
+					continue;
+				int id = jsonCondition.optInt (ForecastSeries.JSON_ID, Integer.MIN_VALUE);
+				this.conditionId[condition] = id >= 0 && id <= Short.MAX_VALUE ? (short) id : ForecastSeries.UNKNOWN_ID;
+				this.conditions[condition] = WeatherData.WeatherCondition.valueOf (jsonCondition);
+				condition++;
+			}
+			index++;
+		}
+		this.conditionStart[count] = condition;
+	}
+
+	/** Make a series of the arrays of each field, e.g. as read by {@link BinaryForecastIO}.
+	 * The arrays are kept, not copied. */
+	ForecastSeries (long[] dateTime, float[] temp, float[] tempMin, float[] tempMax, float[] pressure, float[] humidity,
+			float[] windSpeed, float[] windGust, int[] windDeg, int[] clouds, int[] rain, int[] snow,
+			int[] conditionStart, short[] conditionId, WeatherData.WeatherCondition[] conditions) {
+		this.size = dateTime.length;
+		this.dateTime = dateTime;
+		this.temp = temp;
+		this.tempMin = tempMin;
+		this.tempMax = tempMax;
+		this.pressure = pressure;
+		this.humidity = humidity;
+		this.windSpeed = windSpeed;
+		this.windGust = windGust;
+		this.windDeg = windDeg;
+		this.clouds = clouds;
+		this.rain = rain;
+		this.snow = snow;
+		this.conditionStart = conditionStart;
+		this.conditionId = conditionId;
+		this.conditions = conditions;
+		this.statusCache = new StatusWeatherData[this.size];
+	}
+
+	private void readMain (int index, JSONObject json) {
+		if (json == null) {
+			this.temp[index] = this.tempMin[index] = this.tempMax[index] = Float.NaN;
+			this.pressure[index] = this.humidity[index] = Float.NaN;
+			return;
+		}
+		this.temp[index] = (float) json.optDouble (ForecastSeries.JSON_TEMP);
+		this.tempMin[index] = (float) json.optDouble (ForecastSeries.JSON_TEMP_MIN);
+		this.tempMax[index] = (float) json.optDouble (ForecastSeries.JSON_TEMP_MAX);
+		this.pressure[index] = (float) json.optDouble (ForecastSeries.JSON_PRESSURE);
+		this.humidity[index] = (float) json.optDouble (ForecastSeries.JSON_HUMIDITY);
+	}
+
+	private void readWind (int index, JSONObject json) {
+		if (json == null) {
+			this.windSpeed[index] = this.windGust[index] = Float.NaN;
+			this.windDeg[index] = Integer.MIN_VALUE;
+			return;
+		}
+		this.windSpeed[index] = (float) json.optDouble (ForecastSeries.JSON_SPEED);
+		this.windGust[index] = (float) json.optDouble (ForecastSeries.JSON_GUST);
+		this.windDeg[index] = json.optInt (ForecastSeries.JSON_DEG, Integer.MIN_VALUE);
+	}
+
+	/** @return the amount of the last hour, or of the day if there is none, as {@link WeatherData#getRain()} */
+	static private int readPrecipitation (JSONObject json) {
+		if (json == null)
+			return Integer.MIN_VALUE;
+		WeatherData.Precipitation precipitation = new WeatherData.Precipitation (json);
+		int measure = precipitation.getMeasure (1);
+		return measure != Integer.MIN_VALUE ? measure : precipitation.getToday ();
+	}
+
+	/** @return the number of slots */
+	public int size () {
+		return this.size;
+	}
+
+	public boolean isEmpty () {
+		return this.size == 0;
+	}
+
+	/** @param index is the slot, from 0 to {@link #size()} - 1
+	 * @return the time of the slot, in seconds since the epoch */
+	public long getDateTime (int index) {
+		return this.dateTime[index];
+	}
+
+	/** @return the temperature, in Kelvin */
+	public float getTemp (int index) {
+		return this.temp[index];
+	}
+	public float getTempMin (int index) {
+		return this.tempMin[index];
+	}
+	public float getTempMax (int index) {
+		return this.tempMax[index];
+	}
+	/** @return the pressure, in hectopascal */
+	public float getPressure (int index) {
+		return this.pressure[index];
+	}
+	/** @return the humidity, in percentage */
+	public float getHumidity (int index) {
+		return this.humidity[index];
+	}
+
+	/** @return the wind speed, in metre per second */
+	public float getWindSpeed (int index) {
+		return this.windSpeed[index];
+	}
+	public float getWindGust (int index) {
+		return this.windGust[index];
+	}
+	public int getWindDeg (int index) {
+		return this.windDeg[index];
+	}
+
+	/** @return the cloud cover, in percentage */
+	public int getClouds (int index) {
+		return this.clouds[index];
+	}
+	/** @return the rain, in mm per hour */
+	public int getRain (int index) {
+		return this.rain[index];
+	}
+	/** @return the snow, in mm per hour */
+	public int getSnow (int index) {
+		return this.snow[index];
+	}
+
+	/** @return the number of weather conditions of the slot */
+	public int getConditionCount (int index) {
+		return this.conditionStart[index + 1] - this.conditionStart[index];
+	}
+	/** @param index is the slot
+	 * @param condition is the weather condition of the slot, from 0 to {@link #getConditionCount(int)} - 1
+	 * @return the code of the weather condition */
+	public WeatherData.WeatherCondition.ConditionCode getConditionCode (int index, int condition) {
+		return WeatherData.WeatherCondition.ConditionCode.valueof (getConditionId (index, condition));
+	}
+	/** @return the OWM id of the weather condition, -1 if it isn't one */
+	short getConditionId (int index, int condition) {
+		return this.conditionId[this.conditionStart[index] + condition];
+	}
+	/** @return the weather condition, shared with the other reports having the same one */
+	public WeatherData.WeatherCondition getCondition (int index, int condition) {
+		return this.conditions[this.conditionStart[index] + condition];
+	}
+
+	/** Rebuild the JSON of a slot from the fields kept
+	 * @param index is the slot
+	 * @return the JSON of the slot, without the values missing from the response */
+	public JSONObject toJson (int index) {
+		try {
+			JSONObject json = new JSONObject ();
+			if (getDateTime (index) != Long.MIN_VALUE)
+				json.put (ForecastSeries.JSON_DATE_TIME, getDateTime (index));
+
+			JSONObject main = new JSONObject ();
+			ForecastSeries.putDecimal (main, ForecastSeries.JSON_TEMP, getTemp (index));
+			ForecastSeries.putDecimal (main, ForecastSeries.JSON_TEMP_MIN, getTempMin (index));
+			ForecastSeries.putDecimal (main, ForecastSeries.JSON_TEMP_MAX, getTempMax (index));
+			ForecastSeries.putDecimal (main, ForecastSeries.JSON_PRESSURE, getPressure (index));
+			ForecastSeries.putDecimal (main, ForecastSeries.JSON_HUMIDITY, getHumidity (index));
+			if (main.length () > 0)
+				json.put (ForecastSeries.JSON_MAIN, main);
+
+			JSONObject wind = new JSONObject ();
+			ForecastSeries.putDecimal (wind, ForecastSeries.JSON_SPEED, getWindSpeed (index));
+			ForecastSeries.putDecimal (wind, ForecastSeries.JSON_GUST, getWindGust (index));
+			ForecastSeries.putInteger (wind, ForecastSeries.JSON_DEG, getWindDeg (index));
+			if (wind.length () > 0)
+				json.put (ForecastSeries.JSON_WIND, wind);
+
+			if (getClouds (index) != Integer.MIN_VALUE)
+				json.put (ForecastSeries.JSON_CLOUDS, new JSONObject ().put (ForecastSeries.JSON_ALL, getClouds (index)));
+			if (getRain (index) != Integer.MIN_VALUE)
+				json.put (ForecastSeries.JSON_RAIN, new JSONObject ().put (ForecastSeries.JSON_LAST_HOUR, getRain (index)));
+			if (getSnow (index) != Integer.MIN_VALUE)
+				json.put (ForecastSeries.JSON_SNOW, new JSONObject ().put (ForecastSeries.JSON_LAST_HOUR, getSnow (index)));
+
+			JSONArray weather = new JSONArray ();
+			for (int condition = 0; condition < getConditionCount (index); condition++) {
+				JSONObject jsonCondition = new JSONObject ();
+				jsonCondition.put (ForecastSeries.JSON_ID, getConditionId (index, condition));
+				WeatherData.WeatherCondition weatherCondition = getCondition (index, condition);
+				jsonCondition.put (ForecastSeries.JSON_MAIN, weatherCondition.getMain ());
+				jsonCondition.put (ForecastSeries.JSON_DESCRIPTION, weatherCondition.getDescription ());
+				jsonCondition.put (ForecastSeries.JSON_ICON, weatherCondition.getIconName ());
+				weather.put (jsonCondition);
+			}
+			json.put (ForecastSeries.JSON_WEATHER, weather);
+			return json;
+		} catch (JSONException e) {
+			// Only finite numbers and strings are put
+			throw new IllegalStateException ("Can't rebuild the JSON of slot " + index, e);
+		}
+	}
+
+	static private void putDecimal (JSONObject json, String key, float value) throws JSONException {
+		if (!Float.isNaN (value))
+			json.put (key, (double) value);
+	}
+
+	static private void putInteger (JSONObject json, String key, int value) throws JSONException {
+		if (value != Integer.MIN_VALUE)
+			json.put (key, value);
+	}
+
+	/** @param index is the slot
+	 * @return the slot as a {@link StatusWeatherData}, built on the first call */
+	public StatusWeatherData getStatusWeatherData (int index) {
+		StatusWeatherData status = this.statusCache[index];
+		if (status == null) {
+			status = new StatusWeatherData (toJson (index));
+			this.statusCache[index] = status;
+		}
+		return status;
+	}
+
+	/** @return the slots as {@link StatusWeatherData}, each built when it is first read */
+	public List<StatusWeatherData> asList () {
+		return new StatusList ();
+	}
+
+	private class StatusList extends AbstractList<StatusWeatherData> implements RandomAccess {
+		@Override
+		public StatusWeatherData get (int index) {
+			if (index < 0 || index >= ForecastSeries.this.size)
+				throw new IndexOutOfBoundsException ("Slot " + index + " of " + ForecastSeries.this.size);
+			return getStatusWeatherData (index);
+		}
+
+		@Override
+		public int size () {
+			return ForecastSeries.this.size;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package org.bitpipeline.lib.owm;
+
+import java.util.Arrays;
+
+/** Keeps the latencies of the most recent requests to estimate their percentiles. */
+class LatencyTracker {
+	private final long[] samples;
+	private int count = 0;
+	private int next = 0;
+
+	/** @param capacity is the number of most recent latencies kept */
+	LatencyTracker (int capacity) {
+		this.samples = new long[capacity];
+	}
+
+	/** @param nanos is the latency of a request, in nanoseconds */
+	synchronized void record (long nanos) {
+		this.samples[this.next] = nanos;
+		this.next = (this.next + 1) % this.samples.length;
+		if (this.count < this.samples.length)
+			this.count++;
+	}
+
+	/** @return the number of latencies kept */
+	synchronized int getCount () {
+		return this.count;
+	}
+
+	/** @param percentile is the percentile wanted, between 0 and 1
+	 * @return the latency, in nanoseconds, below which that fraction of the recent
+	 * 	requests completed; 0 if no latency was recorded yet */
+	long getPercentile (double percentile) {
+		long[] sorted;
+		synchronized (this) {
+			if (this.count == 0)
+				return 0;
+			sorted = Arrays.copyOf (this.samples, this.count);
+		}
+		Arrays.sort (sorted);
+		int index = (int) Math.ceil (percentile * sorted.length) - 1;
+		return sorted[Math.max (0, Math.min (sorted.length - 1, index))];
+	}
+}
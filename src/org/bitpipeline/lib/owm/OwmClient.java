@@ -15,50 +15,339 @@
  ***************************************************************************/
 package org.bitpipeline.lib.owm;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.Reader;
-import java.io.StringWriter;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.zip.GZIPInputStream;
 
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
-/** Implements a synchronous HTTP client to the Open Weather Map service described
+/** Implements a HTTP client to the Open Weather Map service described
  * in http://openweathermap.org/wiki/API/JSON_API
+ * Every query is available as a blocking call and, for the most common ones, as an
+ * asynchronous call returning a CompletableFuture.
  * @author mtavares */
 
 /* Modified from the original!
 * */
 public class OwmClient {
 	static private final String APPID_HEADER = "x-api-key";
+	static private final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+	static private final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+	static private final String CONTENT_TYPE_HEADER = "Content-Type";
+	static private final String SUPPORTED_ENCODINGS = "gzip, deflate";
+	static private final String ETAG_HEADER = "ETag";
+	static private final String LAST_MODIFIED_HEADER = "Last-Modified";
+	static private final String IF_NONE_MATCH_HEADER = "If-None-Match";
+	static private final String IF_MODIFIED_SINCE_HEADER = "If-Modified-Since";
+	static private final int MAX_CACHED_RESPONSES = 256;
+	static private final int HTTP_NOT_MODIFIED = 304;
+	static private final int MAX_GROUP_IDS = 20; // most cities the OWM group query accepts
+
+	static private final int DEFAULT_MAX_CONNECTIONS = 20;
+	static private final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+	static private final int DEFAULT_CONNECT_TIMEOUT = 5000; // milliseconds
+	static private final int DEFAULT_SOCKET_TIMEOUT = 15000; // milliseconds
+	static private final long IDLE_CONNECTION_TIMEOUT = 30; // seconds
+	static private final int READ_BUFFER_SIZE = 8*1024;
+	static private final int DEFAULT_REQUESTS_PER_MINUTE = 60; // quota of a free APP ID
+	static private final int DEFAULT_MAX_ATTEMPTS = 3;
+	static private final long DEFAULT_RETRY_BASE_DELAY = 250; // milliseconds
+	static private final long DEFAULT_RETRY_MAX_DELAY = 4000; // milliseconds
+	static private final int DEFAULT_BREAKER_FAILURES = 5;
+	static private final long DEFAULT_BREAKER_OPEN_TIME = 30000; // milliseconds
+	static private final int DEFAULT_ASYNC_THREADS = OwmClient.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+	static private final int LATENCY_SAMPLES = 256;
+	static private final int HEDGE_MIN_SAMPLES = 20; // requests timed before hedging starts
+	static private final long DEFAULT_QUERY_TIMEOUT = 30000; // milliseconds, retries included
 
 	static public enum HistoryType {
 		UNKNOWN,
 		TICK, HOUR, DAY 
 	}
 
-	private String baseOwmUrl = "http://api.openweathermap.org/data/2.5/";
+	/** How urgently a query is needed when the rate limit of the APP ID is reached.
+	 * Waiting queries are sent in the order of this enumeration. */
+	static public enum Priority {
+		/** Requested by the user, who is waiting for it */
+		INTERACTIVE,
+		/** Refresh of a location the user marked as favourite */
+		FAVOURITE,
+		/** Refresh of a recently visited location */
+		RECENT,
+		/** Any other query that can wait */
+		BACKGROUND
+	}
+
+	private volatile String baseOwmUrl = "http://api.openweathermap.org/data/2.5/";
 	private String owmAPPID = "d12c4a04b7d0170dff8f1afca1e4c0ff";
 
-	private HttpClient httpClient;
+	private final OwmTransport transport;
+	private Executor asyncExecutor = null;
+	private final OwmClientStats stats = new OwmClientStats ();
+	private final RequestScheduler scheduler = new RequestScheduler (OwmClient.DEFAULT_REQUESTS_PER_MINUTE, this.stats);
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker (
+			OwmClient.DEFAULT_BREAKER_FAILURES, OwmClient.DEFAULT_BREAKER_OPEN_TIME);
+	private volatile int maxAttempts = OwmClient.DEFAULT_MAX_ATTEMPTS;
+	private volatile long retryBaseDelay = OwmClient.DEFAULT_RETRY_BASE_DELAY;
+	private volatile long retryMaxDelay = OwmClient.DEFAULT_RETRY_MAX_DELAY;
+	private final LatencyTracker requestLatencies = new LatencyTracker (OwmClient.LATENCY_SAMPLES);
+	private volatile double hedgePercentile = 0;
+	private volatile double hedgeMaxExtraLoad = 0;
+	private final AtomicLong hedgeableRequests = new AtomicLong ();
+	private final AtomicLong hedgedRequests = new AtomicLong ();
+	private ExecutorService hedgeExecutor = null;
+	private volatile long defaultTimeout = OwmClient.DEFAULT_QUERY_TIMEOUT;
+	private final ConcurrentMap<String, Long> endpointTimeouts = new ConcurrentHashMap<String, Long> ();
+	private final ConcurrentMap<String, SharedQuery> inFlight = new ConcurrentHashMap<String, SharedQuery> ();
+	private final Map<String, CachedResponse> responseCache = new LinkedHashMap<String, CachedResponse> (16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry (Map.Entry<String, CachedResponse> eldest) {
+			return size () > OwmClient.MAX_CACHED_RESPONSES;
+		}
+	};
+
+	/** A parsed response kept with the validators the OWM server sent for it */
+	static private class CachedResponse {
+		private final String etag;
+		private final String lastModified;
+		private final JSONObject json;
+
+		CachedResponse (String etag, String lastModified, JSONObject json) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.json = json;
+		}
+	}
+
+	/** A query in flight, whose result is shared by the identical queries made meanwhile */
+	static private class SharedQuery {
+		private final CompletableFuture<JSONObject> result = new CompletableFuture<JSONObject> ();
+		private final RequestScheduler.Ticket ticket;
+
+		SharedQuery (Priority priority) {
+			this.ticket = new RequestScheduler.Ticket (priority);
+		}
+	}
 
 	public OwmClient () {
-		this.httpClient = new DefaultHttpClient ();
+		this (OwmClient.createPooledHttpClient (
+				OwmClient.DEFAULT_MAX_CONNECTIONS, OwmClient.DEFAULT_MAX_CONNECTIONS_PER_ROUTE,
+				OwmClient.DEFAULT_CONNECT_TIMEOUT, OwmClient.DEFAULT_SOCKET_TIMEOUT));
 	}
 
 	public OwmClient (HttpClient httpClient) {
 		if (httpClient == null)
 			throw new IllegalArgumentException ("Can't construct a OwmClient with a null HttpClient");
-		this.httpClient = httpClient;
+		this.transport = new ApacheHttpTransport (httpClient);
+	}
+
+	/** @param transport is the HTTP layer sending the queries, e.g. a JdkHttpTransport
+	 * 	to multiplex them over HTTP/2 */
+	public OwmClient (OwmTransport transport) {
+		if (transport == null)
+			throw new IllegalArgumentException ("Can't construct a OwmClient with a null OwmTransport");
+		this.transport = transport;
+	}
+
+	/** Build a keep-alive HttpClient backed by a connection pool, so that consecutive
+	 * queries to the OWM server reuse the same TCP connections instead of opening a new
+	 * one for every request. Connections left idle for a while are evicted from the pool.
+	 * The client doesn't retry failed requests itself, as the OwmClient does.
+	 * @param maxTotal is the maximum number of pooled connections
+	 * @param maxPerRoute is the maximum number of pooled connections to a single host
+	 * @param connectTimeout is the timeout (in milliseconds) to establish a connection
+	 * @param socketTimeout is the timeout (in milliseconds) waiting for data on an open connection
+	 * @return the pooled HttpClient */
+	static public HttpClient createPooledHttpClient (int maxTotal, int maxPerRoute, int connectTimeout, int socketTimeout) {
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager ();
+		connectionManager.setMaxTotal (maxTotal);
+		connectionManager.setDefaultMaxPerRoute (maxPerRoute);
+		RequestConfig requestConfig = RequestConfig.custom ()
+				.setConnectTimeout (connectTimeout)
+				.setConnectionRequestTimeout (connectTimeout)
+				.setSocketTimeout (socketTimeout)
+				.build ();
+		return HttpClients.custom ()
+				.setConnectionManager (connectionManager)
+				.setDefaultRequestConfig (requestConfig)
+				.disableContentCompression () // doQuery negotiates compression itself, to count the bytes
+				.disableAutomaticRetries () // Retries go through doQuery, to back off and reach the circuit breaker
+				.evictExpiredConnections ()
+				.evictIdleConnections (OwmClient.IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS)
+				.build ();
+	}
+
+	/** Build the executor used by the asynchronous queries when none was set: a bounded
+	 * pool of daemon threads, as many as the connections allowed to the OWM server.
+	 * @param threads is the number of threads of the pool
+	 * @return the executor */
+	static private ExecutorService createAsyncExecutor (int threads) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor (threads, threads,
+				IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable> (), OwmClient.daemonThreads ("owm-client-"));
+		executor.allowCoreThreadTimeOut (true);
+		return executor;
+	}
+
+	static private ThreadFactory daemonThreads (final String namePrefix) {
+		final AtomicInteger threadCount = new AtomicInteger ();
+		return runnable -> {
+			Thread thread = new Thread (runnable, namePrefix + threadCount.incrementAndGet ());
+			thread.setDaemon (true);
+			return thread;
+		};
+	}
+
+	/**
+	 * @param executor The executor that runs the asynchronous queries. Any executor can be
+	 * 	used, e.g. one running each query on a virtual thread. */
+	public synchronized void setAsyncExecutor (Executor executor) {
+		if (executor == null)
+			throw new IllegalArgumentException ("Can't run asynchronous queries on a null Executor");
+		this.asyncExecutor = executor;
+	}
+
+	synchronized Executor getAsyncExecutor () {
+		if (this.asyncExecutor == null)
+			this.asyncExecutor = OwmClient.createAsyncExecutor (OwmClient.DEFAULT_ASYNC_THREADS);
+		return this.asyncExecutor;
+	}
+
+	/** The requests of hedged queries run on their own unbounded pool, as the threads
+	 * running the queries wait for them. */
+	private synchronized ExecutorService getHedgeExecutor () {
+		if (this.hedgeExecutor == null)
+			this.hedgeExecutor = Executors.newCachedThreadPool (OwmClient.daemonThreads ("owm-hedge-"));
+		return this.hedgeExecutor;
+	}
+
+	/**
+	 * @return the traffic counters of this client */
+	public OwmClientStats getStats () {
+		return this.stats;
+	}
+
+	/** Limit the rate of requests sent to the OWM server, to stay within the quota of the APP ID.
+	 * Requests over the limit wait, and are then sent by priority.
+	 * @param requestsPerMinute is the number of requests allowed per minute; 0 or less disables the limit */
+	public void setRateLimit (int requestsPerMinute) {
+		this.scheduler.setRate (requestsPerMinute);
+	}
+
+	/** Set how queries failing because of the network or the OWM server are retried.
+	 * The delay before each retry is random, up to a limit that doubles on every attempt.
+	 * @param maxAttempts is the number of times a query is tried, 1 to never retry
+	 * @param baseDelayMillis is the limit of the delay before the first retry
+	 * @param maxDelayMillis is the largest limit of the delay before a retry */
+	public void setRetryPolicy (int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException ("A query must be tried at least once");
+		this.maxAttempts = maxAttempts;
+		this.retryBaseDelay = baseDelayMillis;
+		this.retryMaxDelay = maxDelayMillis;
+	}
+
+	/** Set the time queries are given, retries included, when they are sent without a
+	 * deadline of their own.
+	 * @param millis is the timeout in milliseconds; 0 or less means no timeout */
+	public void setDefaultTimeout (long millis) {
+		this.defaultTimeout = millis;
+	}
+
+	/** Set the time queries to an endpoint are given, retries included, when they are sent
+	 * without a deadline of their own.
+	 * @param endpoint is the first part of the query path, e.g. "forecast" or "find"
+	 * @param millis is the timeout in milliseconds; 0 or less means no timeout */
+	public void setDefaultTimeout (String endpoint, long millis) {
+		this.endpointTimeouts.put (endpoint, Long.valueOf (millis));
+	}
+
+	/** @param subUrl is a query, relative to the base OWM URL
+	 * @return the deadline of the query if it is sent now without one of its own */
+	Deadline getDefaultDeadline (String subUrl) {
+		String trimmed = subUrl.trim ();
+		int end = 0;
+		while (end < trimmed.length () && trimmed.charAt (end) != '/' && trimmed.charAt (end) != '?')
+			end++;
+		Long endpointTimeout = this.endpointTimeouts.get (trimmed.substring (0, end));
+		long millis = endpointTimeout != null ? endpointTimeout.longValue () : this.defaultTimeout;
+		return millis > 0 ? Deadline.after (millis) : Deadline.none ();
+	}
+
+	/** Hedge slow requests: when a request takes longer than most recent ones, send the
+	 * same request again and use whichever response comes first. The duplicate requests
+	 * count against the rate limit, and are only sent if a token is available right away.
+	 * @param percentile is the percentile of the latency of recent requests after which a
+	 * 	request is hedged, e.g. 0.95; 0 disables hedging
+	 * @param maxExtraLoad is the largest fraction of requests that may be sent twice, e.g. 0.05 */
+	public void setHedging (double percentile, double maxExtraLoad) {
+		if (percentile < 0 || percentile >= 1)
+			throw new IllegalArgumentException ("The hedging percentile must be at least 0 and below 1");
+		if (maxExtraLoad < 0)
+			throw new IllegalArgumentException ("The extra load of hedging can't be negative");
+		this.hedgePercentile = percentile;
+		this.hedgeMaxExtraLoad = maxExtraLoad;
+	}
+
+	/**
+	 * @return the circuit breaker that stops queries while the OWM server keeps failing;
+	 * 	listeners can be added to it to follow its state */
+	public CircuitBreaker getCircuitBreaker () {
+		return this.circuitBreaker;
+	}
+
+	/** Send the queries to another server than OpenWeatherMap, e.g. the OwmStubServer of the tests
+	 * @param baseUrl is the URL the queries are relative to, ending with a slash */
+	public void setBaseUrl (String baseUrl) {
+		if (baseUrl == null || !baseUrl.endsWith ("/"))
+			throw new IllegalArgumentException ("The base URL must end with a slash");
+		this.baseOwmUrl = baseUrl;
 	}
 
 	/**
@@ -76,8 +365,8 @@ public class OwmClient {
 	 * @throws JSONException if the response from the OWM server can't be parsed
 	 * @throws IOException if there's some network error or the OWM server replies with a error. */
 	public WeatherStatusResponse currentWeatherAroundPoint (float lat, float lon, int cnt) throws IOException, JSONException { //, boolean cluster, OwmClient.Lang lang) {
-		String subUrl = String.format (Locale.ROOT, "find/station?lat=%f&lon=%f&cnt=%d&cluster=yes",
-				Float.valueOf (lat), Float.valueOf (lon), Integer.valueOf (cnt));
+		String subUrl = QueryBuilder.query ("find/station").param ("cluster", "yes")
+				.param ("cnt", cnt).param ("lat", lat).param ("lon", lon).build ();
 		JSONObject response = doQuery (subUrl);
 		return new WeatherStatusResponse (response);
 	}
@@ -91,8 +380,8 @@ public class OwmClient {
 	 * @throws JSONException if the response from the OWM server can't be parsed
 	 * @throws IOException if there's some network error or the OWM server replies with a error. */
 	public WeatherStatusResponse currentWeatherAtCity (float lat, float lon, int cnt) throws IOException, JSONException { //, boolean cluster, OwmClient.Lang lang) {
-		String subUrl = String.format (Locale.ROOT, "find/city?lat=%f&lon=%f&cnt=%d&cluster=yes",
-				Float.valueOf (lat), Float.valueOf (lon), Integer.valueOf (cnt));
+		String subUrl = QueryBuilder.query ("find/city").param ("cluster", "yes")
+				.param ("cnt", cnt).param ("lat", lat).param ("lon", lon).build ();
 		JSONObject response = doQuery (subUrl);
 		return new WeatherStatusResponse (response);
 	}
@@ -104,8 +393,7 @@ public class OwmClient {
 	 * @throws JSONException if the response from the OWM server can't be parsed
 	 * @throws IOException if there's some network error or the OWM server replies with a error. */
 	public WeatherStatusResponse currentWeatherAtCoords (float lat, float lon) throws IOException, JSONException { //, boolean cluster, OwmClient.Lang lang) {
-		String subUrl = String.format (Locale.ROOT, "find/city?lat=%f&lon=%f",
-				Float.valueOf (lat), Float.valueOf (lon));
+		String subUrl = QueryBuilder.query ("find/city").param ("lat", lat).param ("lon", lon).build ();
 		JSONObject response = doQuery (subUrl);
 		return new WeatherStatusResponse (response);
 	}
@@ -119,9 +407,8 @@ public class OwmClient {
 	 * @throws JSONException if the response from the OWM server can't be parsed
 	 * @throws IOException if there's some network error or the OWM server replies with a error. */
 	public WeatherStatusResponse currentWeatherInBoundingBox (float northLat, float westLon, float southLat, float eastLon) throws IOException, JSONException { //, boolean cluster, OwmClient.Lang lang) {
-		String subUrl = String.format (Locale.ROOT, "find/station?bbox=%f,%f,%f,%f&cluster=yes",
-				Float.valueOf (northLat), Float.valueOf (westLon),
-				Float.valueOf (southLat), Float.valueOf (eastLon));
+		String subUrl = QueryBuilder.query ("find/station")
+				.param ("bbox", northLat, westLon, southLat, eastLon).param ("cluster", "yes").build ();
 		JSONObject response = doQuery (subUrl);
 		return new WeatherStatusResponse (response);
 	}
@@ -135,9 +422,8 @@ public class OwmClient {
 	 * @throws JSONException if the response from the OWM server can't be parsed
 	 * @throws IOException if there's some network error or the OWM server replies with a error. */
 	public WeatherStatusResponse currentWeatherAtCityBoundingBox (float northLat, float westLon, float southLat, float eastLon) throws IOException, JSONException { //, boolean cluster, OwmClient.Lang lang) {
-		String subUrl = String.format (Locale.ROOT, "find/city?bbox=%f,%f,%f,%f&cluster=yes",
-				Float.valueOf (northLat), Float.valueOf (westLon),
-				Float.valueOf (southLat), Float.valueOf (eastLon));
+		String subUrl = QueryBuilder.query ("find/city")
+				.param ("bbox", northLat, westLon, southLat, eastLon).param ("cluster", "yes").build ();
 		JSONObject response = doQuery (subUrl);
 		return new WeatherStatusResponse (response);
 	}
@@ -150,8 +436,8 @@ public class OwmClient {
 	 * @throws JSONException if the response from the OWM server can't be parsed
 	 * @throws IOException if there's some network error or the OWM server replies with a error. */
 	public WeatherStatusResponse currentWeatherInCircle (float lat, float lon, float radius) throws IOException, JSONException { //, boolean cluster, OwmClient.Lang lang) {
-		String subUrl = String.format (Locale.ROOT, "find/station?lat=%f&lon=%f&radius=%f&cluster=yes",
-				Float.valueOf (lat), Float.valueOf (lon), Float.valueOf (radius));
+		String subUrl = QueryBuilder.query ("find/station").param ("cluster", "yes")
+				.param ("lat", lat).param ("lon", lon).param ("radius", radius).build ();
 		JSONObject response = doQuery (subUrl);
 		return new WeatherStatusResponse (response);
 	}
@@ -164,8 +450,8 @@ public class OwmClient {
 	 * @throws JSONException if the response from the OWM server can't be parsed
 	 * @throws IOException if there's some network error or the OWM server replies with a error. */
 	public WeatherStatusResponse currentWeatherAtCityCircle (float lat, float lon, float radius) throws IOException, JSONException {
-		String subUrl = String.format (Locale.ROOT, "find/city?lat=%f&lon=%f&radius=%f&cluster=yes",
-				Float.valueOf (lat), Float.valueOf (lon), Float.valueOf (radius));
+		String subUrl = QueryBuilder.query ("find/city").param ("cluster", "yes")
+				.param ("lat", lat).param ("lon", lon).param ("radius", radius).build ();
 		JSONObject response = doQuery (subUrl);
 		return new WeatherStatusResponse (response);
 	}
@@ -176,7 +462,7 @@ public class OwmClient {
 	 * @throws JSONException if the response from the OWM server can't be parsed
 	 * @throws IOException if there's some network error or the OWM server replies with a error. */
 	public StatusWeatherData currentWeatherAtCity (int cityId) throws IOException, JSONException {
-		String subUrl = String.format (Locale.ROOT, "weather/city/%d?type=json", Integer.valueOf (cityId));
+		String subUrl = QueryBuilder.query ("weather/city/").path (cityId).param ("type", "json").build ();
 		JSONObject response = doQuery (subUrl);
 		return new StatusWeatherData (response);
 	}
@@ -187,18 +473,40 @@ public class OwmClient {
 	 * @throws JSONException if the response from the OWM server can't be parsed
 	 * @throws IOException if there's some network error or the OWM server replies with a error. */
 	public StatusWeatherData currentWeatherAtStation (int stationId) throws IOException, JSONException {
-		String subUrl = String.format (Locale.ROOT, "weather/station/%d?type=json", Integer.valueOf (stationId));
+		String subUrl = QueryBuilder.query ("weather/station/").path (stationId).param ("type", "json").build ();
 		JSONObject response = doQuery (subUrl);
 		return new StatusWeatherData (response);
 	}
 
+	/** Find current weather of several cities.
+	 * The cities are queried in groups of up to 20, the most OWM accepts in one query, and
+	 * the groups are queried concurrently.
+	 * @param cityIds are the IDs of the cities
+	 * @return the StatusWeatherData received for each city, by city ID. Cities unknown to
+	 * 	the OWM server are left out.
+	 * @throws JSONException if a response from the OWM server can't be parsed
+	 * @throws IOException if there's some network error or the OWM server replies with a error. */
+	public Map<Integer, StatusWeatherData> currentWeatherAtCities (Collection<Integer> cityIds) throws IOException, JSONException {
+		return OwmClient.await (currentWeatherAtCitiesAsync (cityIds, Priority.INTERACTIVE));
+	}
+
+	/** Find current weather reported by several stations.
+	 * OWM has no group query for stations so each one is queried on its own, concurrently.
+	 * @param stationIds are the IDs of the stations
+	 * @return the StatusWeatherData received for each station, by station ID
+	 * @throws JSONException if a response from the OWM server can't be parsed
+	 * @throws IOException if there's some network error or the OWM server replies with a error. */
+	public Map<Integer, StatusWeatherData> currentWeatherAtStations (Collection<Integer> stationIds) throws IOException, JSONException {
+		return OwmClient.await (currentWeatherAtStationsAsync (stationIds, Priority.INTERACTIVE));
+	}
+
 	/** Find current city weather
 	 * @param cityName is the name of the city
 	 * @return the StatusWeatherData received
 	 * @throws JSONException if the response from the OWM server can't be parsed
 	 * @throws IOException if there's some network error or the OWM server replies with a error. */
 	public WeatherStatusResponse currentWeatherAtCity (String cityName) throws IOException, JSONException {
-		String subUrl = String.format (Locale.ROOT, "find/name?q=%s", cityName);
+		String subUrl = QueryBuilder.query ("find/name").param ("q", cityName).build ();
 		JSONObject response = doQuery (subUrl);
 		return new WeatherStatusResponse (response);
 	}
@@ -210,7 +518,7 @@ public class OwmClient {
 	 * @throws JSONException if the response from the OWM server can't be parsed
 	 * @throws IOException if there's some network error or the OWM server replies with a error. */
 	public WeatherStatusResponse currentWeatherAtCity (String cityName, String countryCode) throws IOException, JSONException {
-		String subUrl = String.format (Locale.ROOT, "find/name?q=%s,%s", cityName, countryCode.toUpperCase ());
+		String subUrl = QueryBuilder.query ("find/name").param ("q", cityName + "," + countryCode.toUpperCase ()).build ();
 		JSONObject response = doQuery (subUrl);
 		return new WeatherStatusResponse (response);
 	}
@@ -221,7 +529,7 @@ public class OwmClient {
 	 * @throws JSONException if the response from the OWM server can't be parsed
 	 * @throws IOException if there's some network error or the OWM server replies with a error. */
 	public WeatherForecastResponse forecastWeatherAtCity (int cityId) throws JSONException, IOException {
-		String subUrl = String.format (Locale.ROOT, "forecast/city/%d?type=json&units=metric", cityId);
+		String subUrl = QueryBuilder.query ("forecast/city/").path (cityId).param ("type", "json").param ("units", "metric").build ();
 		JSONObject response = doQuery (subUrl);
 		return new WeatherForecastResponse (response);
 	}
@@ -232,7 +540,7 @@ public class OwmClient {
 	 * @throws JSONException if the response from the OWM server can't be parsed
 	 * @throws IOException if there's some network error or the OWM server replies with a error. */
 	public WeatherForecastResponse forecastWeatherAtCity (String cityName) throws JSONException, IOException {
-		String subUrl = String.format (Locale.ROOT, "forecast/city?q=%s&type=json&units=metric", cityName);
+		String subUrl = QueryBuilder.query ("forecast/city").param ("q", cityName).param ("type", "json").param ("units", "metric").build ();
 		JSONObject response = doQuery (subUrl);
 		return new WeatherForecastResponse (response);
 	}
@@ -246,7 +554,7 @@ public class OwmClient {
 	public WeatherHistoryCityResponse historyWeatherAtCity (int cityId, HistoryType type) throws JSONException, IOException {
 		if (type == HistoryType.UNKNOWN)
 			throw new IllegalArgumentException("Can't do a historic request for unknown type of history.");
-		String subUrl = String.format (Locale.ROOT, "history/city/%d?type=%s", cityId, type);
+		String subUrl = QueryBuilder.query ("history/city/").path (cityId).param ("type", type.toString ()).build ();
 		JSONObject response = doQuery (subUrl);
 		return new WeatherHistoryCityResponse (response);
 	}
@@ -260,55 +568,713 @@ public class OwmClient {
 	public WeatherHistoryStationResponse historyWeatherAtStation (int stationId, HistoryType type) throws JSONException, IOException {
 		if (type == HistoryType.UNKNOWN)
 			throw new IllegalArgumentException("Can't do a historic request for unknown type of history.");
-		String subUrl = String.format (Locale.ROOT, "history/station/%d?type=%s", stationId, type);
+		String subUrl = QueryBuilder.query ("history/station/").path (stationId).param ("type", type.toString ()).build ();
 		JSONObject response = doQuery (subUrl);
 		return new WeatherHistoryStationResponse (response);
 	}
 
+	/** Asynchronous version of {@link #currentWeatherAtCity(int)}
+	 * @param cityId is the ID of the city
+	 * @return a future completed with the StatusWeatherData received, or exceptionally
+	 * 	with the JSONException or IOException of the query */
+	public CompletableFuture<StatusWeatherData> currentWeatherAtCityAsync (int cityId) {
+		return supplyAsync (() -> currentWeatherAtCity (cityId));
+	}
+
+	/** Asynchronous version of {@link #currentWeatherAtStation(int)}
+	 * @param stationId is the ID of the station
+	 * @return a future completed with the StatusWeatherData received, or exceptionally
+	 * 	with the JSONException or IOException of the query */
+	public CompletableFuture<StatusWeatherData> currentWeatherAtStationAsync (int stationId) {
+		return supplyAsync (() -> currentWeatherAtStation (stationId));
+	}
+
+	/** Asynchronous version of {@link #currentWeatherAtCities(Collection)}
+	 * @param cityIds are the IDs of the cities
+	 * @param priority is the priority of the queries if the rate limit is reached
+	 * @return a future completed with the StatusWeatherData received for each city, by
+	 * 	city ID, or exceptionally with the first JSONException or IOException of the queries */
+	public CompletableFuture<Map<Integer, StatusWeatherData>> currentWeatherAtCitiesAsync (Collection<Integer> cityIds, Priority priority) {
+		final List<Integer> ids = new ArrayList<Integer> (new LinkedHashSet<Integer> (cityIds));
+		final List<CompletableFuture<WeatherStatusResponse>> groups = new ArrayList<CompletableFuture<WeatherStatusResponse>> ();
+		for (int from = 0; from < ids.size (); from += OwmClient.MAX_GROUP_IDS) {
+			QueryBuilder subUrl = QueryBuilder.query ("group").param ("id", ids.get (from).intValue ());
+			int to = Math.min (from + OwmClient.MAX_GROUP_IDS, ids.size ());
+			for (int i = from + 1; i < to; i++)
+				subUrl.append (ids.get (i).intValue ());
+			groups.add (doQueryAsync (subUrl.build (), priority).thenApply (WeatherStatusResponse::new));
+		}
+		return CompletableFuture.allOf (groups.toArray (new CompletableFuture<?>[groups.size ()])).thenApply (done -> {
+			Map<Integer, StatusWeatherData> weather = new LinkedHashMap<Integer, StatusWeatherData> ();
+			for (CompletableFuture<WeatherStatusResponse> group : groups) {
+				for (StatusWeatherData status : group.join ().getWeatherStatus ()) {
+					Integer id = Integer.valueOf ((int) status.getId ());
+					if (ids.contains (id))
+						weather.put (id, status);
+				}
+			}
+			return weather;
+		});
+	}
+
+	/** Asynchronous version of {@link #currentWeatherAtStations(Collection)}
+	 * @param stationIds are the IDs of the stations
+	 * @param priority is the priority of the queries if the rate limit is reached
+	 * @return a future completed with the StatusWeatherData received for each station, by
+	 * 	station ID, or exceptionally with the first JSONException or IOException of the queries */
+	public CompletableFuture<Map<Integer, StatusWeatherData>> currentWeatherAtStationsAsync (Collection<Integer> stationIds, Priority priority) {
+		final Map<Integer, CompletableFuture<StatusWeatherData>> queries = new LinkedHashMap<Integer, CompletableFuture<StatusWeatherData>> ();
+		for (Integer stationId : stationIds) {
+			if (!queries.containsKey (stationId)) {
+				String subUrl = QueryBuilder.query ("weather/station/").path (stationId.intValue ()).param ("type", "json").build ();
+				queries.put (stationId, doQueryAsync (subUrl, priority).thenApply (StatusWeatherData::new));
+			}
+		}
+		return CompletableFuture.allOf (queries.values ().toArray (new CompletableFuture<?>[queries.size ()])).thenApply (done -> {
+			Map<Integer, StatusWeatherData> weather = new LinkedHashMap<Integer, StatusWeatherData> ();
+			for (Map.Entry<Integer, CompletableFuture<StatusWeatherData>> query : queries.entrySet ())
+				weather.put (query.getKey (), query.getValue ().join ());
+			return weather;
+		});
+	}
+
+	/** Asynchronous version of {@link #forecastWeatherAtCity(int)}
+	 * @param cityId is the ID of the city
+	 * @return a future completed with the WeatherForecastResponse received, or exceptionally
+	 * 	with the JSONException or IOException of the query */
+	public CompletableFuture<WeatherForecastResponse> forecastWeatherAtCityAsync (int cityId) {
+		return supplyAsync (() -> forecastWeatherAtCity (cityId));
+	}
+
+	/** Get the weather forecast at a geographic point, asynchronously
+	 * @param lat is the latitude of the geographic point of interest (North/South coordinate)
+	 * @param lon is the longitude of the geographic point of interest (East/West coordinate)
+	 * @return a future completed with the WeatherStatusResponse received, or exceptionally
+	 * 	with the JSONException or IOException of the query */
+	public CompletableFuture<WeatherStatusResponse> forecastAsync (float lat, float lon) {
+		return forecastAsync (lat, lon, Priority.INTERACTIVE);
+	}
+
+	/** Get the weather forecast at a geographic point, asynchronously
+	 * @param lat is the latitude of the geographic point of interest (North/South coordinate)
+	 * @param lon is the longitude of the geographic point of interest (East/West coordinate)
+	 * @param priority is the priority of the query if the rate limit is reached
+	 * @return a future completed with the WeatherStatusResponse received, or exceptionally
+	 * 	with the JSONException or IOException of the query */
+	public CompletableFuture<WeatherStatusResponse> forecastAsync (float lat, float lon, Priority priority) {
+		String subUrl = QueryBuilder.query ("forecast").param ("lat", lat).param ("lon", lon).build ();
+		return doQueryAsync (subUrl, priority).thenApply (WeatherStatusResponse::new);
+	}
+
+	/** Asynchronous version of {@link #historyWeatherAtCity(int, HistoryType)}
+	 * @param cityId is the OWM city ID
+	 * @param type is the history type (frequency) to use.
+	 * @return a future completed with the WeatherHistoryCityResponse received, or exceptionally
+	 * 	with the JSONException or IOException of the query */
+	public CompletableFuture<WeatherHistoryCityResponse> historyWeatherAtCityAsync (int cityId, HistoryType type) {
+		return supplyAsync (() -> historyWeatherAtCity (cityId, type));
+	}
+
+	/** Asynchronous version of {@link #historyWeatherAtStation(int, HistoryType)}
+	 * @param stationId is the OWM station ID
+	 * @param type is the history type (frequency) to use.
+	 * @return a future completed with the WeatherHistoryStationResponse received, or exceptionally
+	 * 	with the JSONException or IOException of the query */
+	public CompletableFuture<WeatherHistoryStationResponse> historyWeatherAtStationAsync (int stationId, HistoryType type) {
+		return supplyAsync (() -> historyWeatherAtStation (stationId, type));
+	}
+
+	/** Run a query on the asynchronous executor.
+	 * @param subUrl is the query to send, relative to the base OWM URL
+	 * @return a future completed with the JSON response, or exceptionally with the
+	 * 	JSONException or IOException of the query */
+	public CompletableFuture<JSONObject> doQueryAsync (String subUrl) {
+		return doQueryAsync (subUrl, Priority.INTERACTIVE);
+	}
+
+	/** Run a query on the asynchronous executor.
+	 * @param subUrl is the query to send, relative to the base OWM URL
+	 * @param priority is the priority of the query if the rate limit is reached
+	 * @return a future completed with the JSON response, or exceptionally with the
+	 * 	JSONException or IOException of the query */
+	public CompletableFuture<JSONObject> doQueryAsync (String subUrl, Priority priority) {
+		return doQueryAsync (subUrl, priority, getDefaultDeadline (subUrl));
+	}
+
+	/** Run a query on the asynchronous executor.
+	 * @param subUrl is the query to send, relative to the base OWM URL
+	 * @param priority is the priority of the query if the rate limit is reached
+	 * @param deadline is the deadline of the query, waiting for the executor included
+	 * @return a future completed with the JSON response, or exceptionally with the
+	 * 	JSONException or IOException of the query */
+	public CompletableFuture<JSONObject> doQueryAsync (String subUrl, Priority priority, Deadline deadline) {
+		return doQueryAsync (subUrl, priority, deadline, null);
+	}
+
+	/** Run a query on the asynchronous executor, saving its response as it is read.
+	 * @param subUrl is the query to send, relative to the base OWM URL
+	 * @param priority is the priority of the query if the rate limit is reached
+	 * @param deadline is the deadline of the query, waiting for the executor included
+	 * @param sink receives the JSON text of the response, or null
+	 * @return a future completed with the JSON response, or exceptionally with the
+	 * 	JSONException or IOException of the query */
+	public CompletableFuture<JSONObject> doQueryAsync (String subUrl, Priority priority, Deadline deadline, ResponseSink sink) {
+		return supplyAsync (() -> doQuery (subUrl, priority, deadline, sink));
+	}
+
+	private <T> CompletableFuture<T> supplyAsync (Callable<T> query) {
+		final CompletableFuture<T> future = new CompletableFuture<T> ();
+		getAsyncExecutor ().execute (() -> {
+			try {
+				future.complete (query.call ());
+			} catch (Exception e) {
+				future.completeExceptionally (e);
+			}
+		});
+		return future;
+	}
+
+	/** Send a query to the OWM server and parse its response.
+	 * The response body is parsed while it is read from the connection, without first
+	 * copying it into a String. Compressed (gzip or deflate) responses are accepted and
+	 * decompressed on the fly.
+	 * If a previous response to the same query carried an ETag or Last-Modified validator
+	 * the query is made conditional, and when the server replies that nothing changed the
+	 * previously parsed response is returned without downloading it again.
+	 * Concurrent calls for the same query (regardless of the order of its parameters) share
+	 * a single request to the server and its parsed response.
+	 * The returned JSON object may thus be shared and must not be modified.
+	 * The query is sent as an interactive one, ahead of any other waiting for the rate limit.
+	 * Network errors and server errors are retried after a jittered exponential backoff. If
+	 * the server keeps failing the circuit breaker opens and queries fail straight away
+	 * with a {@link CircuitOpenException}.
+	 * @param subUrl is the query to send, relative to the base OWM URL
+	 * @return the JSON response
+	 * @throws JSONException if the response from the OWM server can't be parsed
+	 * @throws IOException if there's some network error or the OWM server replies with a error. */
 	public JSONObject doQuery (String subUrl) throws JSONException, IOException {
-		String responseBody = null;
-		HttpGet httpget = new HttpGet (this.baseOwmUrl + subUrl);
+		return doQuery (subUrl, Priority.INTERACTIVE);
+	}
+
+	/** Send a query to the OWM server and parse its response, as {@link #doQuery(String)} does.
+	 * @param subUrl is the query to send, relative to the base OWM URL
+	 * @param priority is the priority of the query if the rate limit is reached
+	 * @return the JSON response
+	 * @throws JSONException if the response from the OWM server can't be parsed
+	 * @throws IOException if there's some network error or the OWM server replies with a error. */
+	public JSONObject doQuery (String subUrl, Priority priority) throws JSONException, IOException {
+		return doQuery (subUrl, priority, getDefaultDeadline (subUrl));
+	}
+
+	/** Send a query to the OWM server and parse its response, as {@link #doQuery(String)} does,
+	 * giving up once its deadline passes. The deadline covers waiting for the rate limit,
+	 * every retry and the HTTP requests, which are aborted when it passes. A query sharing
+	 * the request of an identical one raises its priority if needed, waits for it until its own
+	 * deadline, and sends the query again if the other one gives up on a shorter deadline.
+	 * @param subUrl is the query to send, relative to the base OWM URL
+	 * @param priority is the priority of the query if the rate limit is reached
+	 * @param deadline is the deadline of the query
+	 * @return the JSON response
+	 * @throws JSONException if the response from the OWM server can't be parsed
+	 * @throws DeadlineExceededException if the deadline passed before the response was received
+	 * @throws IOException if there's some network error or the OWM server replies with a error. */
+	public JSONObject doQuery (String subUrl, Priority priority, Deadline deadline) throws JSONException, IOException {
+		return doQuery (subUrl, priority, deadline, null);
+	}
+
+	/** Send a query to the OWM server and parse its response, as
+	 * {@link #doQuery(String, Priority, Deadline)} does, copying the JSON text of the response
+	 * to a sink as it is read. Responses that aren't read from the network, because they
+	 * didn't change or were shared with an identical query, are given to the sink parsed.
+	 * @param subUrl is the query to send, relative to the base OWM URL
+	 * @param priority is the priority of the query if the rate limit is reached
+	 * @param deadline is the deadline of the query
+	 * @param sink receives the JSON text of the response, or null
+	 * @return the JSON response
+	 * @throws JSONException if the response from the OWM server can't be parsed
+	 * @throws DeadlineExceededException if the deadline passed before the response was received
+	 * @throws IOException if there's some network error or the OWM server replies with a error. */
+	public JSONObject doQuery (String subUrl, Priority priority, Deadline deadline, ResponseSink sink) throws JSONException, IOException {
+		String key = OwmClient.normalizeSubUrl (subUrl);
+		while (true) {
+			SharedQuery query = new SharedQuery (priority);
+			SharedQuery inFlightQuery = this.inFlight.putIfAbsent (key, query);
+			if (inFlightQuery == null)
+				return sendShared (key, query, deadline, sink);
+			this.stats.recordCoalesced ();
+			this.scheduler.raise (inFlightQuery.ticket, priority);
+			try {
+				JSONObject json = OwmClient.await (inFlightQuery.result, deadline);
+				if (sink != null)
+					sink.save (json, false);
+				return json;
+			} catch (InterruptedIOException e) {
+				// The shared query gave up on its own deadline, or its thread was interrupted
+				if (e instanceof SocketTimeoutException || deadline.isExpired () || Thread.currentThread ().isInterrupted ())
+					throw e;
+			}
+		}
+	}
+
+	/** Send a query that identical ones may share while it is in flight */
+	private JSONObject sendShared (String key, SharedQuery query, Deadline deadline, ResponseSink sink) throws JSONException, IOException {
+		try {
+			JSONObject json = fetchWithRetries (key, query.ticket, deadline, sink);
+			query.result.complete (json);
+			return json;
+		} catch (IOException | JSONException | RuntimeException e) {
+			query.result.completeExceptionally (e);
+			throw e;
+		} finally {
+			this.inFlight.remove (key, query);
+		}
+	}
+
+	/** Normalise a query so that equivalent ones are sent, shared and cached alike: the
+	 * parameters are sorted and the empty ones dropped.
+	 * @param subUrl is the query, relative to the base OWM URL
+	 * @return the normalised query */
+	static String normalizeSubUrl (String subUrl) {
+		String trimmed = subUrl.trim ();
+		int queryStart = trimmed.indexOf ('?');
+		if (queryStart < 0 || OwmClient.isNormalized (trimmed, queryStart + 1))
+			return trimmed;
+		String[] parameters = trimmed.substring (queryStart + 1).split ("&");
+		Arrays.sort (parameters);
+		StringBuilder normalized = new StringBuilder (trimmed.length ());
+		normalized.append (trimmed, 0, queryStart + 1);
+		for (String parameter : parameters) {
+			if (parameter.isEmpty ())
+				continue;
+			if (normalized.length () > queryStart + 1)
+				normalized.append ('&');
+			normalized.append (parameter);
+		}
+		return normalized.toString ();
+	}
+
+	/** Check, without copying it, whether the parameters of a query are already sorted and
+	 * none of them is empty, as they are when built in order with a {@link QueryBuilder}.
+	 * @param query is the query
+	 * @param start is where its parameters start
+	 * @return true if the query doesn't need normalising */
+	static private boolean isNormalized (String query, int start) {
+		int previous = -1;
+		int previousEnd = -1;
+		while (start <= query.length ()) {
+			int end = query.indexOf ('&', start);
+			if (end < 0)
+				end = query.length ();
+			if (end == start)
+				return false;
+			if (previous >= 0 && OwmClient.compareRegions (query, previous, previousEnd, start, end) > 0)
+				return false;
+			previous = start;
+			previousEnd = end;
+			start = end + 1;
+		}
+		return true;
+	}
+
+	static private int compareRegions (String s, int aStart, int aEnd, int bStart, int bEnd) {
+		int length = Math.min (aEnd - aStart, bEnd - bStart);
+		for (int i = 0; i < length; i++) {
+			char a = s.charAt (aStart + i);
+			char b = s.charAt (bStart + i);
+			if (a != b)
+				return a - b;
+		}
+		return (aEnd - aStart) - (bEnd - bStart);
+	}
+
+	static private <T> T await (CompletableFuture<T> call) throws JSONException, IOException {
+		return OwmClient.await (call, Deadline.none ());
+	}
+
+	static private <T> T await (CompletableFuture<T> call, Deadline deadline) throws JSONException, IOException {
+		try {
+			if (!deadline.isFinite ())
+				return call.get ();
+			return call.get (Math.max (0, deadline.remainingNanos ()), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			throw new DeadlineExceededException ("Deadline passed while waiting for the OWM server");
+		} catch (InterruptedException e) {
+			Thread.currentThread ().interrupt ();
+			throw new InterruptedIOException ("Interrupted while waiting for the OWM server");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause ();
+			if (cause instanceof CompletionException && cause.getCause () != null)
+				cause = cause.getCause ();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof JSONException)
+				throw (JSONException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException (cause);
+		}
+	}
+
+	private JSONObject fetchWithRetries (String subUrl, RequestScheduler.Ticket ticket, Deadline deadline, ResponseSink sink) throws JSONException, IOException {
+		for (int attempt = 1; ; attempt++) {
+			deadline.check ("querying " + subUrl);
+			if (!this.circuitBreaker.allowRequest ()) {
+				this.stats.recordFastFailure ();
+				throw new CircuitOpenException ("OWM server keeps failing, query not sent: " + subUrl);
+			}
+			try {
+				this.scheduler.acquire (ticket, deadline);
+				long start = System.nanoTime ();
+				JSONObject json = fetchHedged (subUrl, deadline, sink);
+				this.stats.recordLatency (System.nanoTime () - start);
+				this.circuitBreaker.recordSuccess ();
+				return json;
+			} catch (IOException e) {
+				if (!OwmClient.isServerFailure (e)) {
+					if (e instanceof OwmHttpException)
+						this.circuitBreaker.recordSuccess (); // The server is up, the query is wrong
+					else
+						this.circuitBreaker.recordAbandoned ();
+					throw e;
+				}
+				this.circuitBreaker.recordFailure ();
+				if (attempt >= this.maxAttempts || deadline.isExpired ())
+					throw e;
+			} catch (JSONException e) {
+				this.circuitBreaker.recordSuccess ();
+				throw e;
+			} catch (RuntimeException e) {
+				this.circuitBreaker.recordAbandoned ();
+				throw e;
+			}
+			this.stats.recordRetry ();
+			backOff (attempt, deadline);
+		}
+	}
+
+	/** Send a request and, if hedging is enabled and the request is slower than the
+	 * configured percentile of recent ones, a second identical request. Once one of them
+	 * succeeds the other is aborted, and only the first to finish goes to the sink.
+	 * @param subUrl is the query to send, relative to the base OWM URL
+	 * @return the JSON of the first successful response
+	 * @throws JSONException if the response from the OWM server can't be parsed
+	 * @throws IOException if there's some network error or the OWM server replies with a error. */
+	private JSONObject fetchHedged (final String subUrl, final Deadline deadline, final ResponseSink sink) throws JSONException, IOException {
+		double percentile = this.hedgePercentile;
+		if (percentile <= 0 || this.requestLatencies.getCount () < OwmClient.HEDGE_MIN_SAMPLES)
+			return timedFetch (subUrl, deadline, sink);
+		this.hedgeableRequests.incrementAndGet ();
+		long threshold = this.requestLatencies.getPercentile (percentile);
+		ExecutorService executor = getHedgeExecutor ();
+		AtomicReference<ResponseSink> sinkOwner = new AtomicReference<ResponseSink> ();
+		Deadline primaryDeadline = deadline.cancellable ();
+		CompletableFuture<JSONObject> primary = timedFetchOn (executor, subUrl, primaryDeadline,
+				FirstResponseSink.wrap (sink, sinkOwner));
+		try {
+			primary.get (Math.min (threshold, Math.max (0, deadline.remainingNanos ())), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			if (!deadline.isExpired () && allowHedge ()) {
+				this.stats.recordHedge ();
+				Deadline hedgeDeadline = deadline.cancellable ();
+				CompletableFuture<JSONObject> hedge = timedFetchOn (executor, subUrl, hedgeDeadline,
+						FirstResponseSink.wrap (sink, sinkOwner));
+				try {
+					return OwmClient.await (OwmClient.firstSuccessful (primary, hedge), deadline);
+				} finally {
+					/* Abort the request still running, so it doesn't hold a connection and a thread */
+					primaryDeadline.cancel ();
+					hedgeDeadline.cancel ();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread ().interrupt ();
+			throw new InterruptedIOException ("Interrupted while waiting for the OWM server");
+		} catch (ExecutionException e) {
+			// Reported by await
+		}
+		return OwmClient.await (primary, deadline);
+	}
+
+	/** Hands a response to a sink for only one of the requests sent for a hedged query, the
+	 * first to finish reading its response; the copies of the others are thrown away. */
+	static private final class FirstResponseSink implements ResponseSink {
+		private final ResponseSink sink;
+		private final AtomicReference<ResponseSink> owner;
+
+		private FirstResponseSink (ResponseSink sink, AtomicReference<ResponseSink> owner) {
+			this.sink = sink;
+			this.owner = owner;
+		}
+
+		static ResponseSink wrap (ResponseSink sink, AtomicReference<ResponseSink> owner) {
+			return sink != null ? new FirstResponseSink (sink, owner) : null;
+		}
+
+		/** @return true if this request is the one handing its response to the sink */
+		private boolean claim () {
+			return this.owner.compareAndSet (null, this) || this.owner.get () == this;
+		}
+
+		@Override
+		public Copy open () throws IOException {
+			final Copy copy = this.sink.open ();
+			return new Copy () {
+				@Override
+				public OutputStream getStream () {
+					return copy.getStream ();
+				}
+
+				@Override
+				public void commit () throws IOException {
+					if (claim ())
+						copy.commit ();
+					else
+						copy.discard ();
+				}
+
+				@Override
+				public void discard () {
+					copy.discard ();
+				}
+			};
+		}
+
+		@Override
+		public void save (JSONObject json, boolean unchanged) {
+			if (claim ())
+				this.sink.save (json, unchanged);
+		}
+	}
+
+	/** @return true if a duplicate request may be sent, within both the extra load allowed
+	 * 	and the rate limit */
+	private boolean allowHedge () {
+		long hedged = this.hedgedRequests.get ();
+		if (hedged + 1 > this.hedgeMaxExtraLoad * this.hedgeableRequests.get ())
+			return false;
+		if (!this.hedgedRequests.compareAndSet (hedged, hedged + 1))
+			return false; // Another query just took the budget
+		if (this.scheduler.tryAcquire ())
+			return true;
+		this.hedgedRequests.decrementAndGet ();
+		return false;
+	}
+
+	private CompletableFuture<JSONObject> timedFetchOn (Executor executor, final String subUrl, final Deadline deadline,
+			final ResponseSink sink) {
+		final CompletableFuture<JSONObject> future = new CompletableFuture<JSONObject> ();
+		executor.execute (() -> {
+			try {
+				future.complete (timedFetch (subUrl, deadline, sink));
+			} catch (Exception e) {
+				future.completeExceptionally (e);
+			}
+		});
+		return future;
+	}
+
+	/** Send a request and record how long it took, to know when to hedge */
+	private JSONObject timedFetch (String subUrl, Deadline deadline, ResponseSink sink) throws JSONException, IOException {
+		long start = System.nanoTime ();
+		JSONObject json = fetch (subUrl, deadline, sink);
+		this.requestLatencies.record (System.nanoTime () - start);
+		return json;
+	}
+
+	/** @return a future completed with the result of the first of two futures to succeed,
+	 * 	or with the error of the last one if both fail */
+	static private <T> CompletableFuture<T> firstSuccessful (CompletableFuture<T> first, CompletableFuture<T> second) {
+		final CompletableFuture<T> result = new CompletableFuture<T> ();
+		final AtomicInteger failures = new AtomicInteger ();
+		BiConsumer<T, Throwable> complete = (value, error) -> {
+			if (error == null)
+				result.complete (value);
+			else if (failures.incrementAndGet () == 2)
+				result.completeExceptionally (error);
+		};
+		first.whenComplete (complete);
+		second.whenComplete (complete);
+		return result;
+	}
+
+	/** @return true if the query failed because of the network or the OWM server, and may
+	 * 	work if tried again */
+	static private boolean isServerFailure (IOException e) {
+		if (e instanceof OwmHttpException) {
+			int statusCode = ((OwmHttpException) e).getStatusCode ();
+			return statusCode >= 500 || statusCode == 429; // 429: Too Many Requests
+		}
+		if (e instanceof CircuitOpenException)
+			return false;
+		if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException))
+			return false; // The thread was interrupted
+		return true;
+	}
+
+	private void backOff (int attempt, Deadline deadline) throws InterruptedIOException {
+		long limit = Math.min (this.retryMaxDelay, this.retryBaseDelay << Math.min (attempt - 1, 30));
+		long delay = limit > 0 ? ThreadLocalRandom.current ().nextLong (limit + 1) : 0;
+		delay = Math.max (0, Math.min (delay, deadline.remainingMillis ()));
+		try {
+			Thread.sleep (delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread ().interrupt ();
+			throw new InterruptedIOException ("Interrupted while waiting to retry a query to the OWM server");
+		}
+	}
+
+	private JSONObject fetch (String subUrl, Deadline deadline, ResponseSink sink) throws JSONException, IOException {
+		Map<String, String> headers = new LinkedHashMap<String, String> ();
 		if (this.owmAPPID != null) {
-			httpget.addHeader (OwmClient.APPID_HEADER, this.owmAPPID);
+			headers.put (OwmClient.APPID_HEADER, this.owmAPPID);
+		}
+		headers.put (OwmClient.ACCEPT_ENCODING_HEADER, OwmClient.SUPPORTED_ENCODINGS);
+		CachedResponse cached;
+		synchronized (this.responseCache) {
+			cached = this.responseCache.get (subUrl);
+		}
+		if (cached != null) {
+			if (cached.etag != null)
+				headers.put (OwmClient.IF_NONE_MATCH_HEADER, cached.etag);
+			if (cached.lastModified != null)
+				headers.put (OwmClient.IF_MODIFIED_SINCE_HEADER, cached.lastModified);
 		}
 
-		HttpResponse response = this.httpClient.execute (httpget);
-		InputStream contentStream = null;
+		OwmTransport.Response response;
+		ResponseSink.Copy copy = null;
 		try {
-			StatusLine statusLine = response.getStatusLine ();
-			if (statusLine == null) {
-				throw new IOException (
-						String.format ("Unable to get a response from OWM server"));
+			response = this.transport.get (QueryBuilder.url (this.baseOwmUrl, subUrl), headers, deadline);
+		} catch (IOException e) {
+			throw OwmClient.deadlineExceeded (e, deadline);
+		}
+		try {
+			int statusCode = response.getStatusCode ();
+			if (statusCode == OwmClient.HTTP_NOT_MODIFIED && cached != null) {
+				this.stats.recordCacheHit ();
+				if (sink != null)
+					sink.save (cached.json, true);
+				return cached.json;
 			}
-			int statusCode = statusLine.getStatusCode ();
-			if (statusCode < 200 && statusCode >= 300) {
-				throw new IOException (
-						String.format ("OWM server responded with status code %d: %s", statusCode, statusLine.toString()));
+			if (statusCode < 200 || statusCode >= 300) {
+				throw new OwmHttpException (statusCode,
+						String.format ("OWM server responded with status code %d", statusCode));
 			}
-			/* Read the response content */
-			HttpEntity responseEntity = response.getEntity ();
-			contentStream = responseEntity.getContent ();
-			Reader isReader = new InputStreamReader (contentStream);
-			int contentSize = (int) responseEntity.getContentLength ();
-			if (contentSize < 0)
-				contentSize = 8*1024;
-			StringWriter strWriter = new StringWriter (contentSize);
-			char[] buffer = new char[8*1024];
-			int n = 0;
-			while ((n = isReader.read(buffer)) != -1) {
-					strWriter.write(buffer, 0, n);
+			/* Parse the response content as it arrives */
+			InputStream contentStream = response.getBody ();
+			if (contentStream == null) {
+				throw new IOException ("OWM server responded without content");
 			}
-			responseBody = strWriter.toString ();
-			contentStream.close ();
+			CountingInputStream wireStream = new CountingInputStream (contentStream);
+			InputStream bodyStream = OwmClient.decode (wireStream, response.getHeader (OwmClient.CONTENT_ENCODING_HEADER));
+			copy = OwmClient.openCopy (sink);
+			TeeInputStream teeStream = null;
+			if (copy != null)
+				bodyStream = teeStream = new TeeInputStream (bodyStream, copy.getStream ());
+			CountingInputStream decodedStream = new CountingInputStream (bodyStream);
+			JSONObject json = OwmClient.parseJson (decodedStream,
+					OwmClient.getCharset (response.getHeader (OwmClient.CONTENT_TYPE_HEADER)));
+			/* The rest of the body, after the JSON, goes to the copy and the counts too */
+			decodedStream.drain ();
+			this.stats.recordResponse (subUrl, wireStream.getCount (), decodedStream.getCount ());
+			cacheResponse (subUrl, response, json);
+			if (copy != null)
+				OwmClient.commitCopy (copy, teeStream.hasFailed (), sink, json);
+			else if (sink != null)
+				sink.save (json, false);
+			copy = null;
+			return json;
 		} catch (IOException e) {
-			throw e;
+			throw OwmClient.deadlineExceeded (e, deadline);
 		} catch (RuntimeException re) {
-			httpget.abort ();
+			response.abort ();
 			throw re;
 		} finally {
-			if (contentStream != null)
-				contentStream.close ();
+			if (copy != null)
+				copy.discard ();
+			response.close ();
+		}
+	}
+
+	static private ResponseSink.Copy openCopy (ResponseSink sink) {
+		if (sink == null)
+			return null;
+		try {
+			return sink.open ();
+		} catch (IOException e) {
+			return null; // The response is handed to the sink parsed instead
+		}
+	}
+
+	/** Keep the copy of a response body, or save the parsed response if it couldn't be copied */
+	static private void commitCopy (ResponseSink.Copy copy, boolean failed, ResponseSink sink, JSONObject json) {
+		if (!failed) {
+			try {
+				copy.commit ();
+				return;
+			} catch (IOException e) {
+				// Saved parsed below
+			}
 		}
-		return new JSONObject (responseBody);
+		copy.discard ();
+		sink.save (json, false);
+	}
+
+	/** @return the exception of an aborted request, as a DeadlineExceededException if it
+	 * 	was aborted because its deadline passed */
+	static private IOException deadlineExceeded (IOException e, Deadline deadline) {
+		if (e instanceof DeadlineExceededException || e instanceof OwmHttpException || !deadline.isExpired ())
+			return e;
+		DeadlineExceededException exceeded = new DeadlineExceededException ("Deadline passed while waiting for the OWM server");
+		exceeded.initCause (e);
+		return exceeded;
+	}
+
+	private void cacheResponse (String subUrl, OwmTransport.Response response, JSONObject json) {
+		String etag = response.getHeader (OwmClient.ETAG_HEADER);
+		String lastModified = response.getHeader (OwmClient.LAST_MODIFIED_HEADER);
+		synchronized (this.responseCache) {
+			if (etag == null && lastModified == null) {
+				this.responseCache.remove (subUrl);
+			} else {
+				this.responseCache.put (subUrl, new CachedResponse (etag, lastModified, json));
+			}
+		}
+	}
+
+	/** Parse a JSON object straight from a stream, reading it only once.
+	 * @param in is the stream with the JSON text
+	 * @param charset is the charset of the JSON text
+	 * @return the parsed JSON object
+	 * @throws JSONException if the stream doesn't hold a valid JSON object */
+	static JSONObject parseJson (InputStream in, Charset charset) throws JSONException {
+		Reader reader = new BufferedReader (new InputStreamReader (in, charset), OwmClient.READ_BUFFER_SIZE);
+		return new JSONObject (new JSONTokener (reader));
+	}
+
+	/** Wrap a response body in the decompressor matching its content encoding.
+	 * @param in is the body as received from the network
+	 * @param contentEncoding is the Content-Encoding header of the response, if any
+	 * @return the stream of decoded body bytes
+	 * @throws IOException if the encoding is unsupported or the compressed stream is corrupted */
+	static private InputStream decode (InputStream in, String contentEncoding) throws IOException {
+		if (contentEncoding == null)
+			return in;
+		String encoding = contentEncoding.trim ().toLowerCase (Locale.ROOT);
+		if (encoding.isEmpty () || encoding.equals ("identity"))
+			return in;
+		if (encoding.equals ("gzip") || encoding.equals ("x-gzip"))
+			return new GZIPInputStream (in, OwmClient.READ_BUFFER_SIZE);
+		if (encoding.equals ("deflate"))
+			return new DeflateInputStream (in);
+		throw new IOException ("OWM server responded with unsupported content encoding " + encoding);
+	}
+
+	static private Charset getCharset (String contentTypeHeader) {
+		if (contentTypeHeader == null)
+			return StandardCharsets.UTF_8;
+		ContentType contentType = ContentType.parse (contentTypeHeader);
+		if (contentType.getCharset () != null)
+			return contentType.getCharset ();
+		return StandardCharsets.UTF_8;
 	}
 }
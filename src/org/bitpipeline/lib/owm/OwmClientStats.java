@@ -0,0 +1,224 @@
+package org.bitpipeline.lib.owm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters describing the traffic of an OwmClient.
+ * All the counters are cumulative since the client was built and are safe to read
+ * while queries are running. */
+public class OwmClientStats {
+	static private final int LATENCY_SAMPLES = 1024;
+	static private final int RECENT_RESPONSES = 64;
+
+	/** The size of the body of one response, as received and after decompression */
+	static public final class ResponseSize {
+		private final String query;
+		private final long bytesReceived;
+		private final long bytesDecoded;
+
+		ResponseSize (String query, long bytesReceived, long bytesDecoded) {
+			this.query = query;
+			this.bytesReceived = bytesReceived;
+			this.bytesDecoded = bytesDecoded;
+		}
+
+		/** @return the query, relative to the base OWM URL */
+		public String getQuery () {
+			return this.query;
+		}
+
+		/** @return the number of body bytes received from the network, possibly compressed */
+		public long getBytesReceived () {
+			return this.bytesReceived;
+		}
+
+		/** @return the number of body bytes after decompression */
+		public long getBytesDecoded () {
+			return this.bytesDecoded;
+		}
+
+		@Override
+		public String toString () {
+			return String.format (Locale.ROOT, "%s received=%dB decoded=%dB", this.query, this.bytesReceived, this.bytesDecoded);
+		}
+	}
+
+	private final AtomicLong responses = new AtomicLong ();
+	private final AtomicLong bytesReceived = new AtomicLong ();
+	private final AtomicLong bytesDecoded = new AtomicLong ();
+	private final AtomicLong cacheHits = new AtomicLong ();
+	private final AtomicLong coalesced = new AtomicLong ();
+	private final AtomicLong retries = new AtomicLong ();
+	private final AtomicLong fastFailures = new AtomicLong ();
+	private final AtomicLong scheduled = new AtomicLong ();
+	private final AtomicLong waitNanos = new AtomicLong ();
+	private final AtomicLong maxWaitNanos = new AtomicLong ();
+	private volatile int queueDepth = 0;
+	private final AtomicLong maxQueueDepth = new AtomicLong ();
+	private final ArrayDeque<ResponseSize> recentResponses = new ArrayDeque<ResponseSize> ();
+	private final AtomicLong hedges = new AtomicLong ();
+	private final LatencyTracker latencies = new LatencyTracker (OwmClientStats.LATENCY_SAMPLES);
+
+	void recordResponse (String query, long received, long decoded) {
+		this.responses.incrementAndGet ();
+		this.bytesReceived.addAndGet (received);
+		this.bytesDecoded.addAndGet (decoded);
+		ResponseSize size = new ResponseSize (query, received, decoded);
+		synchronized (this.recentResponses) {
+			if (this.recentResponses.size () >= OwmClientStats.RECENT_RESPONSES)
+				this.recentResponses.removeFirst ();
+			this.recentResponses.addLast (size);
+		}
+	}
+
+	void recordCacheHit () {
+		this.cacheHits.incrementAndGet ();
+	}
+
+	void recordCoalesced () {
+		this.coalesced.incrementAndGet ();
+	}
+
+	void recordRetry () {
+		this.retries.incrementAndGet ();
+	}
+
+	void recordFastFailure () {
+		this.fastFailures.incrementAndGet ();
+	}
+
+	void recordQueueDepth (int depth) {
+		this.queueDepth = depth;
+		OwmClientStats.updateMax (this.maxQueueDepth, depth);
+	}
+
+	void recordWait (long nanos) {
+		this.scheduled.incrementAndGet ();
+		this.waitNanos.addAndGet (nanos);
+		OwmClientStats.updateMax (this.maxWaitNanos, nanos);
+	}
+
+	void recordHedge () {
+		this.hedges.incrementAndGet ();
+	}
+
+	void recordLatency (long nanos) {
+		this.latencies.record (nanos);
+	}
+
+	static private void updateMax (AtomicLong max, long value) {
+		long current = max.get ();
+		while (value > current && !max.compareAndSet (current, value))
+			current = max.get ();
+	}
+
+	/** @return the number of response bodies read from the OWM server */
+	public long getResponses () {
+		return this.responses.get ();
+	}
+
+	/** @return the number of body bytes received from the network, possibly compressed */
+	public long getBytesReceived () {
+		return this.bytesReceived.get ();
+	}
+
+	/** @return the number of body bytes after decompression */
+	public long getBytesDecoded () {
+		return this.bytesDecoded.get ();
+	}
+
+	/** @return the sizes of the most recent response bodies, oldest first, each with the
+	 * 	query it answered */
+	public List<ResponseSize> getRecentResponses () {
+		synchronized (this.recentResponses) {
+			return new ArrayList<ResponseSize> (this.recentResponses);
+		}
+	}
+
+	/** @return how many decoded bytes were obtained per byte received; 1 if nothing was compressed */
+	public double getCompressionRatio () {
+		long received = this.bytesReceived.get ();
+		if (received == 0)
+			return 1;
+		return (double) this.bytesDecoded.get () / received;
+	}
+
+	/** @return the number of queries answered from the cache after the OWM server
+	 * 	replied that the response had not changed */
+	public long getCacheHits () {
+		return this.cacheHits.get ();
+	}
+
+	/** @return the fraction of successful queries answered from the cache */
+	public double getCacheHitRatio () {
+		long hits = this.cacheHits.get ();
+		long total = hits + this.responses.get ();
+		if (total == 0)
+			return 0;
+		return (double) hits / total;
+	}
+
+	/** @return the number of queries that shared the request of an identical query in flight */
+	public long getCoalesced () {
+		return this.coalesced.get ();
+	}
+
+	/** @return the number of times a failed query was tried again */
+	public long getRetries () {
+		return this.retries.get ();
+	}
+
+	/** @return the number of queries failed without being sent as the circuit breaker was open */
+	public long getFastFailures () {
+		return this.fastFailures.get ();
+	}
+
+	/** @return the number of requests currently waiting for the rate limiter */
+	public int getQueueDepth () {
+		return this.queueDepth;
+	}
+
+	/** @return the largest number of requests that waited for the rate limiter at once */
+	public long getMaxQueueDepth () {
+		return this.maxQueueDepth.get ();
+	}
+
+	/** @return the average time, in milliseconds, requests waited for the rate limiter */
+	public double getAverageWaitMillis () {
+		long count = this.scheduled.get ();
+		if (count == 0)
+			return 0;
+		return this.waitNanos.get () / 1e6 / count;
+	}
+
+	/** @return the longest time, in milliseconds, a request waited for the rate limiter */
+	public double getMaxWaitMillis () {
+		return this.maxWaitNanos.get () / 1e6;
+	}
+
+	/** @return the number of requests sent a second time because the first was slow */
+	public long getHedges () {
+		return this.hedges.get ();
+	}
+
+	/** @param percentile is the percentile wanted, between 0 and 1, e.g. 0.99
+	 * @return the time, in milliseconds, below which that fraction of the recent successful
+	 * 	requests got their response, hedging included and waiting for the rate limiter excluded */
+	public double getLatencyMillis (double percentile) {
+		return this.latencies.getPercentile (percentile) / 1e6;
+	}
+
+	@Override
+	public String toString () {
+		return String.format (Locale.ROOT, "responses=%d received=%dB decoded=%dB ratio=%.1f cacheHits=%d (%.0f%%) coalesced=%d"
+				+ " retries=%d fastFailures=%d hedges=%d p50=%.1fms p99=%.1fms"
+				+ " queue=%d (max %d) wait=%.1fms (max %.1fms)",
+				getResponses (), getBytesReceived (), getBytesDecoded (), getCompressionRatio (),
+				getCacheHits (), getCacheHitRatio () * 100, getCoalesced (),
+				getRetries (), getFastFailures (), getHedges (), getLatencyMillis (0.5), getLatencyMillis (0.99),
+				getQueueDepth (), getMaxQueueDepth (), getAverageWaitMillis (), getMaxWaitMillis ());
+	}
+}
@@ -0,0 +1,21 @@
+package org.bitpipeline.lib.owm;
+
+import java.io.IOException;
+
+/** Signals that the OWM server replied to a query with an error status code. */
+public class OwmHttpException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private final int statusCode;
+
+	public OwmHttpException (int statusCode, String message) {
+		super (message);
+		this.statusCode = statusCode;
+	}
+
+	/**
+	 * @return the HTTP status code of the reply */
+	public int getStatusCode () {
+		return this.statusCode;
+	}
+}
@@ -0,0 +1,44 @@
+package org.bitpipeline.lib.owm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/** The HTTP layer under {@link OwmClient}, sending its GET requests to the OWM server.
+ * Compression, conditional requests, retries and parsing are left to the OwmClient: a
+ * transport only sends the headers it is given and hands back the raw response.
+ * @see ApacheHttpTransport */
+public interface OwmTransport {
+
+	/** A response of the OWM server, holding on to its connection until closed */
+	interface Response {
+		/** @return the HTTP status code */
+		int getStatusCode ();
+
+		/** @param name is the name of the header, in any case
+		 * @return the first value of the header, or null if the response doesn't have it */
+		String getHeader (String name);
+
+		/** @return the body as received, still compressed if it was sent so, or null if the
+		 * 	response has no body
+		 * @throws IOException if the body can't be read */
+		InputStream getBody () throws IOException;
+
+		/** Release the response once done with it, so that its connection can be reused,
+		 * and stop waiting for its deadline */
+		void close ();
+
+		/** Drop the response without reading the rest of its body, e.g. when it can't be parsed */
+		void abort ();
+	}
+
+	/** Send a GET request and wait for the response headers.
+	 * Once the deadline passes the request is aborted, whether it is still waiting for the
+	 * response or its body is being read.
+	 * @param url is the full URL of the request
+	 * @param headers are the headers of the request
+	 * @param deadline is the deadline of the request
+	 * @return the response, which must be closed
+	 * @throws IOException if there's some network error or the request was aborted */
+	Response get (String url, Map<String, String> headers, Deadline deadline) throws IOException;
+}
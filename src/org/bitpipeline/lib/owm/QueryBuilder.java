@@ -0,0 +1,134 @@
+package org.bitpipeline.lib.owm;
+
+/** Builds the queries sent to the OWM server in a buffer reused by each thread.
+ * Numbers are written straight into the buffer, without boxing them or going through a
+ * formatter, and coordinates are written with the same fixed precision of six decimal
+ * places as <code>String.format ("%f")</code>, so that equal coordinates give equal queries.
+ * A builder must be used right away: the next query started on the same thread reuses it.
+ * <pre>
+ * String subUrl = QueryBuilder.query ("forecast").param ("lat", lat).param ("lon", lon).build ();
+ * </pre> */
+public final class QueryBuilder {
+	static private final long DECIMALS_SCALE = 1000000L;
+	static private final int INITIAL_CAPACITY = 128;
+	static private final ThreadLocal<QueryBuilder> BUILDERS = ThreadLocal.withInitial (QueryBuilder::new);
+	static private final ThreadLocal<StringBuilder> URLS = ThreadLocal.withInitial (() -> new StringBuilder (QueryBuilder.INITIAL_CAPACITY));
+
+	private final StringBuilder buffer = new StringBuilder (QueryBuilder.INITIAL_CAPACITY);
+	private boolean hasParameters;
+
+	private QueryBuilder () {
+	}
+
+	/** Start a query on the builder of the current thread
+	 * @param path is the path of the query, relative to the base OWM URL
+	 * @return the builder of the current thread */
+	static public QueryBuilder query (String path) {
+		QueryBuilder builder = QueryBuilder.BUILDERS.get ();
+		builder.buffer.setLength (0);
+		builder.buffer.append (path);
+		builder.hasParameters = path.indexOf ('?') >= 0;
+		return builder;
+	}
+
+	/** Join the base OWM URL and a query in the buffer of the current thread
+	 * @param baseUrl is the base OWM URL, ending with a "/"
+	 * @param subUrl is the query, relative to the base OWM URL
+	 * @return the full URL of the query */
+	static String url (String baseUrl, String subUrl) {
+		StringBuilder url = QueryBuilder.URLS.get ();
+		url.setLength (0);
+		return url.append (baseUrl).append (subUrl).toString ();
+	}
+
+	/** Append an ID to the path of the query, before any parameter
+	 * @param id is the ID to append
+	 * @return this builder */
+	public QueryBuilder path (int id) {
+		this.buffer.append (id);
+		return this;
+	}
+
+	/** Add a parameter to the query
+	 * @param name is the name of the parameter
+	 * @param value is the value of the parameter, sent as it is
+	 * @return this builder */
+	public QueryBuilder param (String name, String value) {
+		startParam (name).append (value);
+		return this;
+	}
+
+	/** Add an integer parameter to the query
+	 * @param name is the name of the parameter
+	 * @param value is the value of the parameter
+	 * @return this builder */
+	public QueryBuilder param (String name, int value) {
+		startParam (name).append (value);
+		return this;
+	}
+
+	/** Add a decimal parameter, such as a coordinate, to the query
+	 * @param name is the name of the parameter
+	 * @param value is the value of the parameter, written with six decimal places
+	 * @return this builder */
+	public QueryBuilder param (String name, float value) {
+		startParam (name);
+		appendFixed (value);
+		return this;
+	}
+
+	/** Add a bounding box parameter to the query
+	 * @param name is the name of the parameter
+	 * @param northLat is the latitude of the geographic top left point of the bounding box
+	 * @param westLon is the longitude of the geographic top left point of the bounding box
+	 * @param southLat is the latitude of the geographic bottom right point of the bounding box
+	 * @param eastLon is the longitude of the geographic bottom right point of the bounding box
+	 * @return this builder */
+	public QueryBuilder param (String name, float northLat, float westLon, float southLat, float eastLon) {
+		startParam (name);
+		appendFixed (northLat);
+		this.buffer.append (',');
+		appendFixed (westLon);
+		this.buffer.append (',');
+		appendFixed (southLat);
+		this.buffer.append (',');
+		appendFixed (eastLon);
+		return this;
+	}
+
+	/** Add another value, after a comma, to the last parameter of the query
+	 * @param value is the value to add
+	 * @return this builder */
+	public QueryBuilder append (int value) {
+		this.buffer.append (',').append (value);
+		return this;
+	}
+
+	/** @return the query built */
+	public String build () {
+		return this.buffer.toString ();
+	}
+
+	@Override
+	public String toString () {
+		return build ();
+	}
+
+	private StringBuilder startParam (String name) {
+		this.buffer.append (this.hasParameters ? '&' : '?');
+		this.hasParameters = true;
+		return this.buffer.append (name).append ('=');
+	}
+
+	private void appendFixed (float value) {
+		double magnitude = Math.abs ((double) value);
+		long scaled = Math.round (magnitude * QueryBuilder.DECIMALS_SCALE);
+		if (Math.copySign (1f, value) < 0)
+			this.buffer.append ('-');
+		this.buffer.append (scaled / QueryBuilder.DECIMALS_SCALE).append ('.');
+		long fraction = scaled % QueryBuilder.DECIMALS_SCALE;
+		for (long digit = QueryBuilder.DECIMALS_SCALE / 10; digit > 1 && fraction < digit; digit /= 10)
+			this.buffer.append ('0');
+		this.buffer.append (fraction);
+	}
+}
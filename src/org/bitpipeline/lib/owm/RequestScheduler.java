@@ -0,0 +1,158 @@
+package org.bitpipeline.lib.owm;
+
+import java.io.InterruptedIOException;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Keeps the requests to the OWM server within the quota of the APP ID.
+ * Requests take a token from a bucket refilled at a fixed rate. When the bucket is
+ * empty they wait, and the waiting requests are let through by priority and then in
+ * arrival order.
+ * @see OwmClient.Priority */
+class RequestScheduler {
+	static private final long NANOS_PER_MINUTE = TimeUnit.MINUTES.toNanos (1);
+
+	/** A request waiting for a token. Its priority may be raised while it waits, when a more
+	 * urgent query comes to share it. Its fields are guarded by the lock of the scheduler. */
+	static class Ticket implements Comparable<Ticket> {
+		private OwmClient.Priority priority;
+		private long sequence;
+
+		Ticket (OwmClient.Priority priority) {
+			this.priority = priority;
+		}
+
+		@Override
+		public int compareTo (Ticket other) {
+			int byPriority = this.priority.compareTo (other.priority);
+			if (byPriority != 0)
+				return byPriority;
+			return Long.compare (this.sequence, other.sequence);
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock ();
+	private final Condition changed = this.lock.newCondition ();
+	private final PriorityQueue<Ticket> waiting = new PriorityQueue<Ticket> ();
+	private final OwmClientStats stats;
+	private long sequence = 0;
+
+	private int requestsPerMinute;
+	private double tokens;
+	private long lastRefill;
+
+	RequestScheduler (int requestsPerMinute, OwmClientStats stats) {
+		this.stats = stats;
+		setRate (requestsPerMinute);
+	}
+
+	/** @param requestsPerMinute is the number of requests allowed per minute, which is also
+	 * 	the largest burst allowed; 0 or less disables the limit */
+	void setRate (int requestsPerMinute) {
+		this.lock.lock ();
+		try {
+			this.requestsPerMinute = requestsPerMinute;
+			this.tokens = Math.max (0, requestsPerMinute);
+			this.lastRefill = System.nanoTime ();
+			this.changed.signalAll ();
+		} finally {
+			this.lock.unlock ();
+		}
+	}
+
+	/** Wait until a request may be sent. A ticket may be used again for the retries of a
+	 * request, which then wait behind the requests queued meanwhile.
+	 * @param ticket holds the priority of the request
+	 * @param deadline is the deadline of the request
+	 * @throws DeadlineExceededException if the deadline passes while waiting
+	 * @throws InterruptedIOException if the thread is interrupted while waiting */
+	void acquire (Ticket ticket, Deadline deadline) throws InterruptedIOException {
+		long start = System.nanoTime ();
+		this.lock.lock ();
+		try {
+			if (this.requestsPerMinute <= 0)
+				return;
+			ticket.sequence = this.sequence++;
+			this.waiting.add (ticket);
+			this.stats.recordQueueDepth (this.waiting.size ());
+			try {
+				while (true) {
+					if (this.requestsPerMinute <= 0)
+						break;
+					refill ();
+					if (this.waiting.peek () == ticket && this.tokens >= 1) {
+						this.tokens -= 1;
+						break;
+					}
+					long remaining = deadline.remainingNanos ();
+					if (remaining <= 0)
+						throw new DeadlineExceededException ("Deadline passed while waiting for the rate limit");
+					if (this.waiting.peek () != ticket)
+						this.changed.awaitNanos (remaining);
+					else
+						this.changed.awaitNanos (Math.min (remaining, nanosToNextToken ()));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread ().interrupt ();
+				throw new InterruptedIOException ("Interrupted while waiting to query the OWM server");
+			} finally {
+				this.waiting.remove (ticket);
+				this.stats.recordQueueDepth (this.waiting.size ());
+				this.changed.signalAll ();
+			}
+		} finally {
+			this.lock.unlock ();
+			this.stats.recordWait (System.nanoTime () - start);
+		}
+	}
+
+	/** Raise the priority of a request, moving it up the queue if it is waiting.
+	 * @param ticket is the request
+	 * @param priority is the new priority; a lower one than the current is ignored */
+	void raise (Ticket ticket, OwmClient.Priority priority) {
+		this.lock.lock ();
+		try {
+			if (priority.compareTo (ticket.priority) >= 0)
+				return;
+			boolean queued = this.waiting.remove (ticket);
+			ticket.priority = priority;
+			if (queued) {
+				this.waiting.add (ticket);
+				this.changed.signalAll ();
+			}
+		} finally {
+			this.lock.unlock ();
+		}
+	}
+
+	/** Take a token only if one is available right away and no request is waiting for it.
+	 * @return true if a request may be sent */
+	boolean tryAcquire () {
+		this.lock.lock ();
+		try {
+			if (this.requestsPerMinute <= 0)
+				return true;
+			refill ();
+			if (!this.waiting.isEmpty () || this.tokens < 1)
+				return false;
+			this.tokens -= 1;
+			return true;
+		} finally {
+			this.lock.unlock ();
+		}
+	}
+
+	private void refill () {
+		long now = System.nanoTime ();
+		double refilled = (double) (now - this.lastRefill) * this.requestsPerMinute / RequestScheduler.NANOS_PER_MINUTE;
+		this.tokens = Math.min (this.requestsPerMinute, this.tokens + refilled);
+		this.lastRefill = now;
+	}
+
+	private long nanosToNextToken () {
+		double missing = 1 - this.tokens;
+		return Math.max (1, (long) Math.ceil (missing * RequestScheduler.NANOS_PER_MINUTE / this.requestsPerMinute));
+	}
+}
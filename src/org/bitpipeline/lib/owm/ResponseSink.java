@@ -0,0 +1,37 @@
+package org.bitpipeline.lib.owm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.json.JSONObject;
+
+/** Receives the JSON text of a response while the OwmClient reads and parses it, so that
+ * it can be saved, e.g. to a file, without serialising the parsed JSON object again.
+ * Saving is best effort: a copy that can't be written is discarded and the response is
+ * handed to {@link #save(JSONObject, boolean)} instead, without failing the query. */
+public interface ResponseSink {
+
+	/** A copy of one response body, made while it is read from the network */
+	interface Copy {
+		/** @return the stream the decoded body is copied to */
+		OutputStream getStream ();
+
+		/** Keep the copy, once the whole body was read and parsed
+		 * @throws IOException if the copy can't be kept */
+		void commit () throws IOException;
+
+		/** Throw the copy away, as the response failed or the copy couldn't be written */
+		void discard ();
+	}
+
+	/** Start copying a response body
+	 * @return the copy to write the body to
+	 * @throws IOException if the copy can't be started */
+	Copy open () throws IOException;
+
+	/** Save a response that couldn't be copied as it was read
+	 * @param json is the parsed response
+	 * @param unchanged is true if the OWM server replied that the response hasn't changed
+	 * 	since it was last received */
+	void save (JSONObject json, boolean unchanged);
+}
@@ -0,0 +1,68 @@
+package org.bitpipeline.lib.owm;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/** An input stream that copies the bytes read through it to an output stream.
+ * Failing to write the copy doesn't fail the reading: the copy stops and is marked as failed. */
+class TeeInputStream extends FilterInputStream {
+	private final OutputStream copy;
+	private boolean failed = false;
+
+	TeeInputStream (InputStream in, OutputStream copy) {
+		super (in);
+		this.copy = copy;
+	}
+
+	/** @return true if the copy couldn't be written completely */
+	boolean hasFailed () {
+		return this.failed;
+	}
+
+	@Override
+	public int read () throws IOException {
+		int b = super.read ();
+		if (b != -1 && !this.failed) {
+			try {
+				this.copy.write (b);
+			} catch (IOException e) {
+				this.failed = true;
+			}
+		}
+		return b;
+	}
+
+	@Override
+	public int read (byte[] buffer, int offset, int length) throws IOException {
+		int n = super.read (buffer, offset, length);
+		if (n > 0 && !this.failed) {
+			try {
+				this.copy.write (buffer, offset, n);
+			} catch (IOException e) {
+				this.failed = true;
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public long skip (long n) throws IOException {
+		/* Skipped bytes must still be copied */
+		byte[] buffer = new byte[(int) Math.min (n, 1024)];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read (buffer, 0, (int) Math.min (buffer.length, n - skipped));
+			if (read < 0)
+				break;
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported () {
+		return false;
+	}
+}
@@ -18,12 +18,14 @@ package org.bitpipeline.lib.owm;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
-import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -134,46 +136,76 @@ public class WeatherData extends AbstractWeatherData {
 		}
 	}
 
+	/** Measurements over the last 1 to 24 hours, kept without boxing:
+	 * bit h of the mask is set when there is a measurement for the last h hours,
+	 * and the measurements present are packed, by increasing hours, in an array. */
 	private static class TimedDetails {
-		private Map<Integer, Integer> measurements = null;
+		static private final int MAX_HOURS = 24;
+		static private final int[] NO_MEASUREMENTS = new int[0];
+		/** The JSON key of the measurement for the last h hours, at index h */
+		static private final String[] JSON_HOURS = new String[TimedDetails.MAX_HOURS + 1];
+
+		static {
+			for (int i=1; i<=TimedDetails.MAX_HOURS; i++)
+				TimedDetails.JSON_HOURS[i] = i + "h";
+		}
+
+		private int present = 0;
+		private int[] measurements = TimedDetails.NO_MEASUREMENTS;
 
 		TimedDetails () {
 		}
 
 		TimedDetails (JSONObject json) {
-			for (int i=1; i<=24; i++) {
-				String value = json.optString (String.format (Locale.ROOT, "%dh", i));
-				if (value.length () > 0) {
-					try {
-						putMeasure (i, Integer.valueOf (value));
-					} catch (NumberFormatException nfe) {
-						continue;
+			/* Sized once, from the number of fields, which bounds the number of measurements */
+			int capacity = Math.min (json.length (), TimedDetails.MAX_HOURS);
+			if (capacity > 0)
+				this.measurements = new int[capacity];
+			for (int i=1; i<=TimedDetails.MAX_HOURS; i++) {
+				Object value = json.opt (TimedDetails.JSON_HOURS[i]);
+				if (value instanceof Integer) {
+					putMeasure (i, ((Integer) value).intValue ());
+				} else if (value != null) {
+					String text = value.toString ();
+					if (text.length () > 0) {
+						try {
+							putMeasure (i, Integer.parseInt (text));
+						} catch (NumberFormatException nfe) {
+							continue;
+						}
 					}
 				}
 			}
 		}
 
 		public boolean hasMeasures ()  {
-			return this.measurements != null && this.measurements.size () > 0;
+			return this.present != 0;
 		}
-		private void putMeasure (int lastHours, Integer value) {
-			if (this.measurements == null)
-				this.measurements = new HashMap<Integer, Integer> ();
-			this.measurements.put (Integer.valueOf (lastHours), value);
+		/** Add a measurement, for more hours than any added before */
+		private void putMeasure (int lastHours, int value) {
+			this.measurements[Integer.bitCount (this.present)] = value;
+			this.present |= 1 << lastHours;
 		}
 		public int getMeasure (int lastHours) {
-			return getMeasure (Integer.valueOf (lastHours));
+			if (lastHours < 1 || lastHours > TimedDetails.MAX_HOURS)
+				return Integer.MIN_VALUE;
+			int bit = 1 << lastHours;
+			if ((this.present & bit) == 0)
+				return Integer.MIN_VALUE;
+			return this.measurements[Integer.bitCount (this.present & (bit - 1))];
 		}
 		public int getMeasure (Integer lastHours) {
-			if (this.measurements == null)
-				return Integer.MIN_VALUE;
-			Integer value = this.measurements.get (lastHours);
-			return value != null? value.intValue () : Integer.MIN_VALUE;
+			return lastHours != null ? getMeasure (lastHours.intValue ()) : Integer.MIN_VALUE;
 		}
 		public Set<Integer> measurements () {
-			if (this.measurements == null)
+			if (this.present == 0)
 				return Collections.emptySet ();
-			return this.measurements.keySet ();
+			Set<Integer> hours = new TreeSet<Integer> ();
+			for (int i=1; i<=TimedDetails.MAX_HOURS; i++) {
+				if ((this.present & (1 << i)) != 0)
+					hours.add (Integer.valueOf (i));
+			}
+			return hours;
 		}
 	}
 
@@ -376,17 +408,28 @@ public class WeatherData extends AbstractWeatherData {
 			WINDY                           (905),
 			HAIL                            (906);
 
+			static private final int MIN_ID = 200;
+			static private final int MAX_ID = 906;
+			/** The condition of each id, indexed by id - MIN_ID */
+			static private final ConditionCode[] BY_ID = new ConditionCode[ConditionCode.MAX_ID - ConditionCode.MIN_ID + 1];
+
+			static {
+				Arrays.fill (ConditionCode.BY_ID, ConditionCode.UNKNOWN);
+				for (ConditionCode condition : ConditionCode.values ()) {
+					if (condition != ConditionCode.UNKNOWN)
+						ConditionCode.BY_ID[condition.id - ConditionCode.MIN_ID] = condition;
+				}
+			}
+
 			private int id;
 			private ConditionCode (int code) {
 				this.id = code;
 			}
 
 			static public ConditionCode valueof (int id) {
-				for (ConditionCode condition : ConditionCode.values ()) {
-					if (condition.id == id)
-						return condition;
-				}
-				return ConditionCode.UNKNOWN;
+				if (id < ConditionCode.MIN_ID || id > ConditionCode.MAX_ID)
+					return ConditionCode.UNKNOWN;
+				return ConditionCode.BY_ID[id - ConditionCode.MIN_ID];
 			}
 
 			public int getId () {
@@ -399,16 +442,66 @@ public class WeatherData extends AbstractWeatherData {
 		private static final String JSON_DESCRIPTION = "description";
 		private static final String JSON_ICON = "icon";
 
-		private ConditionCode code = null;
-		private String main = null;
-		private String description = null;
-		private String iconName = null;
+		/** The largest number of canonical conditions kept, in case a server sends unexpected icons */
+		static private final int MAX_CANONICAL = 1024;
+		/** The canonical condition of each code, by icon name */
+		static private final ConcurrentMap<String, ConcurrentMap<ConditionCode, WeatherCondition>> CANONICAL =
+				new ConcurrentHashMap<String, ConcurrentMap<ConditionCode, WeatherCondition>> ();
+		static private final AtomicInteger CANONICAL_COUNT = new AtomicInteger ();
+
+		private final ConditionCode code;
+		private final String main;
+		private final String description;
+		private final String iconName;
 
 		public WeatherCondition (JSONObject json) {
-			this.code = ConditionCode.valueof (json.optInt (WeatherCondition.JSON_ID, Integer.MIN_VALUE));
-			this.main = json.optString (WeatherCondition.JSON_MAIN);
-			this.description = json.optString (WeatherCondition.JSON_DESCRIPTION);
-			this.iconName = json.optString (WeatherCondition.JSON_ICON);
+			this (ConditionCode.valueof (json.optInt (WeatherCondition.JSON_ID, Integer.MIN_VALUE)),
+					json.optString (WeatherCondition.JSON_MAIN),
+					json.optString (WeatherCondition.JSON_DESCRIPTION),
+					json.optString (WeatherCondition.JSON_ICON));
+		}
+
+		private WeatherCondition (ConditionCode code, String main, String description, String iconName) {
+			this.code = code;
+			this.main = main;
+			this.description = description;
+			this.iconName = iconName;
+		}
+
+		/** Get the shared instance of a weather condition.
+		 * OWM has a few dozen combinations of condition and icon, so the conditions of every
+		 * report share the instance of the first one seen with the same code and icon. A
+		 * condition whose texts differ from it, e.g. in another language, gets its own instance.
+		 * @param json is the JSON of the weather condition
+		 * @return the canonical instance of the condition */
+		static public WeatherCondition valueOf (JSONObject json) {
+			return WeatherCondition.valueOf (ConditionCode.valueof (json.optInt (WeatherCondition.JSON_ID, Integer.MIN_VALUE)),
+					json.optString (WeatherCondition.JSON_MAIN),
+					json.optString (WeatherCondition.JSON_DESCRIPTION),
+					json.optString (WeatherCondition.JSON_ICON));
+		}
+
+		/** Get the shared instance of a weather condition read from somewhere else than JSON
+		 * @see #valueOf(JSONObject) */
+		static WeatherCondition valueOf (ConditionCode code, String main, String description, String iconName) {
+			ConcurrentMap<ConditionCode, WeatherCondition> byCode = WeatherCondition.CANONICAL.get (iconName);
+			WeatherCondition canonical = byCode != null ? byCode.get (code) : null;
+			if (canonical == null) {
+				if (WeatherCondition.CANONICAL_COUNT.get () >= WeatherCondition.MAX_CANONICAL)
+					return new WeatherCondition (code, main, description, iconName);
+				if (byCode == null)
+					byCode = WeatherCondition.CANONICAL.computeIfAbsent (iconName,
+							icon -> new ConcurrentHashMap<ConditionCode, WeatherCondition> ());
+				canonical = new WeatherCondition (code, main, description, iconName);
+				WeatherCondition known = byCode.putIfAbsent (code, canonical);
+				if (known == null)
+					WeatherCondition.CANONICAL_COUNT.incrementAndGet ();
+				else
+					canonical = known;
+			}
+			if (canonical.main.equals (main) && canonical.description.equals (description))
+				return canonical;
+			return new WeatherCondition (code, main, description, iconName);
 		}
 
 		public ConditionCode getCode () {
@@ -437,159 +530,224 @@ public class WeatherData extends AbstractWeatherData {
 		}
 	}
 
-	
-	private final Main main;
-	private final Wind wind;
-	private final Clouds clouds;
-	private final Precipitation rain;
-	private final Precipitation snow;
-	private final List<WeatherCondition> weatherConditions;
+	/* Each part of the report is decoded from its JSON the first time it is read */
+	static private final int DECODED_MAIN = 1;
+	static private final int DECODED_WIND = 1 << 1;
+	static private final int DECODED_CLOUDS = 1 << 2;
+	static private final int DECODED_RAIN = 1 << 3;
+	static private final int DECODED_SNOW = 1 << 4;
+	static private final int DECODED_CONDITIONS = 1 << 5;
+	static private final int DECODED_ALL = (1 << 6) - 1;
+
+	/** The JSON of the report, until every part has been decoded */
+	private JSONObject json;
+	/** The parts decoded, written after the part itself so that readers see it */
+	private volatile int decoded = 0;
+	private Main main;
+	private Wind wind;
+	private Clouds clouds;
+	private Precipitation rain;
+	private Precipitation snow;
+	private List<WeatherCondition> weatherConditions;
 
 	public WeatherData (JSONObject json) {
 		super (json);
+		this.json = json;
+	}
+
+	private boolean isDecoded (int part) {
+		return (this.decoded & part) != 0;
+	}
+
+	/** Mark a part as decoded, letting go of the JSON once nothing is left to decode */
+	private void setDecoded (int part) {
+		int parts = this.decoded | part;
+		if (parts == WeatherData.DECODED_ALL)
+			this.json = null;
+		this.decoded = parts;
+	}
 
-		JSONObject jsonMain = json.optJSONObject (WeatherData.JSON_MAIN);
+	private synchronized void decodeMain () {
+		if (isDecoded (WeatherData.DECODED_MAIN))
+			return;
+		JSONObject jsonMain = this.json.optJSONObject (WeatherData.JSON_MAIN);
 		this.main = jsonMain != null ? new Main (jsonMain) : null;
+		setDecoded (WeatherData.DECODED_MAIN);
+	}
 
-		JSONObject jsonWind = json.optJSONObject (WeatherData.JSON_WIND);
+	private synchronized void decodeWind () {
+		if (isDecoded (WeatherData.DECODED_WIND))
+			return;
+		JSONObject jsonWind = this.json.optJSONObject (WeatherData.JSON_WIND);
 		this.wind = jsonWind != null ? new Wind (jsonWind) : null;
+		setDecoded (WeatherData.DECODED_WIND);
+	}
 
-		if (json.has (WeatherData.JSON_CLOUDS)) {
-			JSONArray coudsArray = json.optJSONArray (WeatherData.JSON_CLOUDS);
-			if (coudsArray != null)
-				this.clouds = new Clouds (coudsArray);
-			else {
-				JSONObject cloudsObj = json.optJSONObject (WeatherData.JSON_CLOUDS);
-				if (cloudsObj != null)
-					this.clouds = new Clouds (cloudsObj);
-				else
-					this.clouds = null;
-			}
-		} else
-			this.clouds = null;
+	private synchronized void decodeClouds () {
+		if (isDecoded (WeatherData.DECODED_CLOUDS))
+			return;
+		this.clouds = null;
+		JSONArray coudsArray = this.json.optJSONArray (WeatherData.JSON_CLOUDS);
+		if (coudsArray != null)
+			this.clouds = new Clouds (coudsArray);
+		else {
+			JSONObject cloudsObj = this.json.optJSONObject (WeatherData.JSON_CLOUDS);
+			if (cloudsObj != null)
+				this.clouds = new Clouds (cloudsObj);
+		}
+		setDecoded (WeatherData.DECODED_CLOUDS);
+	}
 
-		JSONObject jsonRain = json.optJSONObject (WeatherData.JSON_RAIN);
+	private synchronized void decodeRain () {
+		if (isDecoded (WeatherData.DECODED_RAIN))
+			return;
+		JSONObject jsonRain = this.json.optJSONObject (WeatherData.JSON_RAIN);
 		this.rain = jsonRain != null ? new Precipitation (jsonRain) : null;
+		setDecoded (WeatherData.DECODED_RAIN);
+	}
 
-		JSONObject jsonSnow = json.optJSONObject (WeatherData.JSON_SNOW);
+	private synchronized void decodeSnow () {
+		if (isDecoded (WeatherData.DECODED_SNOW))
+			return;
+		JSONObject jsonSnow = this.json.optJSONObject (WeatherData.JSON_SNOW);
 		this.snow = jsonSnow != null ? new Precipitation (jsonSnow) : null;
+		setDecoded (WeatherData.DECODED_SNOW);
+	}
 
-		if (json.has (WeatherData.JSON_WEATHER)) {
-			JSONArray jsonConditions = json.optJSONArray (WeatherData.JSON_WEATHER);
-			if (jsonConditions != null) {
-				this.weatherConditions = new ArrayList<WeatherCondition> (jsonConditions.length ());
-				if (jsonConditions != null) {
-					for (int i = 0; i < jsonConditions.length (); i++) {
-						JSONObject jsonCondition = jsonConditions.optJSONObject (i);
-						if (jsonCondition != null)
-							this.weatherConditions.add (
-									new WeatherCondition (jsonCondition));
-					}
-				}
-			} else {
-				this.weatherConditions = Collections.emptyList ();
+	private synchronized void decodeWeatherConditions () {
+		if (isDecoded (WeatherData.DECODED_CONDITIONS))
+			return;
+		JSONArray jsonConditions = this.json.optJSONArray (WeatherData.JSON_WEATHER);
+		if (jsonConditions != null) {
+			List<WeatherCondition> conditions = new ArrayList<WeatherCondition> (jsonConditions.length ());
+			for (int i = 0; i < jsonConditions.length (); i++) {
+				JSONObject jsonCondition = jsonConditions.optJSONObject (i);
+				if (jsonCondition != null)
+					conditions.add (WeatherCondition.valueOf (jsonCondition));
 			}
+			this.weatherConditions = conditions;
 		} else {
 			this.weatherConditions = Collections.emptyList ();
 		}
+		setDecoded (WeatherData.DECODED_CONDITIONS);
 	}
 
 	public boolean hasMain () {
-		return this.main != null;
+		return getMain () != null;
 	}
 	public Main getMain () {
+		if (!isDecoded (WeatherData.DECODED_MAIN))
+			decodeMain ();
 		return this.main;
 	}
 
 	public boolean hasWind () {
-		return this.wind != null;
+		return getWind () != null;
 	}
 	public Wind getWind () {
+		if (!isDecoded (WeatherData.DECODED_WIND))
+			decodeWind ();
 		return this.wind;
 	}
 
 	public boolean hasClouds () {
-		return this.clouds != null;
+		return getClouds () != null;
 	}
 	public Clouds getClouds () {
+		if (!isDecoded (WeatherData.DECODED_CLOUDS))
+			decodeClouds ();
 		return this.clouds;
 	}
 
 	public boolean hasRain () {
-		return this.rain != null;
+		return getRainObj () != null;
 	}
 	public Precipitation getRainObj () {
+		if (!isDecoded (WeatherData.DECODED_RAIN))
+			decodeRain ();
 		return this.rain;
 	}
 
 	public boolean hasSnow () {
-		return this.snow != null;
+		return getSnowObj () != null;
 	}
 	public Precipitation getSnowObj () {
+		if (!isDecoded (WeatherData.DECODED_SNOW))
+			decodeSnow ();
 		return this.snow;
 	}
 
 	public boolean hasWeatherConditions () {
-		return this.weatherConditions != null && !this.weatherConditions.isEmpty ();
+		return !getWeatherConditions ().isEmpty ();
 	}
 	public List<WeatherCondition> getWeatherConditions () {
+		if (!isDecoded (WeatherData.DECODED_CONDITIONS))
+			decodeWeatherConditions ();
 		return this.weatherConditions;
 	}
 
 	/* */
 
 	public float getTemp () {
-		if (hasMain () && this.main.hasTemp ())
-			return this.main.getTemp ();
+		Main main = getMain ();
+		if (main != null && main.hasTemp ())
+			return main.getTemp ();
 		return Float.NaN;
 	}
 
 	public float getHumidity () {
-		if (hasMain () && this.main.hasHumidity ())
-			return this.main.getHumidity ();
+		Main main = getMain ();
+		if (main != null && main.hasHumidity ())
+			return main.getHumidity ();
 		return Float.NaN;
 	}
 
 	public float getPressure () {
-		if (hasMain () && this.main.hasPressure ())
-			return this.main.getPressure ();
+		Main main = getMain ();
+		if (main != null && main.hasPressure ())
+			return main.getPressure ();
 		return Float.NaN;
 	}
 
 	public float getWindSpeed () {
-		if (hasWind () && this.wind.hasSpeed ())
-			return this.wind.getSpeed ();
+		Wind wind = getWind ();
+		if (wind != null && wind.hasSpeed ())
+			return wind.getSpeed ();
 		return Float.NaN;
 	}
 
 	public float getWindGust () {
-		if (hasWind () && this.wind.hasGust ())
-			return this.wind.getGust ();
+		Wind wind = getWind ();
+		if (wind != null && wind.hasGust ())
+			return wind.getGust ();
 		return Float.NaN;
 	}
 
 	public int getWindDeg () {
-		if (hasWind () && this.wind.hasDeg ())
-			return this.wind.getDeg ();
+		Wind wind = getWind ();
+		if (wind != null && wind.hasDeg ())
+			return wind.getDeg ();
 		return Integer.MIN_VALUE;
 	}
 
 	public int getRain () {
-		if (!hasRain ())
+		Precipitation rain = getRainObj ();
+		if (rain == null)
 			return Integer.MIN_VALUE;
-		int measure = this.rain.getMeasure (1);
+		int measure = rain.getMeasure (1);
 		if (measure != Integer.MIN_VALUE)
 			return measure;
-		return this.rain.getToday ();
+		return rain.getToday ();
 	}
 
 	public int getSnow () {
-		if (!hasSnow ())
+		Precipitation snow = getSnowObj ();
+		if (snow == null)
 			return Integer.MIN_VALUE;
-		int measure = this.snow.getMeasure (1);
+		int measure = snow.getMeasure (1);
 		if (measure != Integer.MIN_VALUE)
 			return measure;
-		return this.snow.getToday ();
+		return snow.getToday ();
 	}
 
 	public int getPrecipitation () {
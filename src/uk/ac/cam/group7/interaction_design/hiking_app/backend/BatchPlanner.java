@@ -0,0 +1,159 @@
+package uk.ac.cam.group7.interaction_design.hiking_app.backend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Groups nearby locations together so that a single API request can fetch the forecast for all of them
+ * The API forecasts for the nearest city it knows, so locations a short distance apart get the same forecast
+ */
+class BatchPlanner {
+
+    private static final double EARTH_RADIUS_KM = 6371.0;
+
+    /**
+     * A group of nearby locations sharing one forecast request made at their centre
+     */
+    static class Cluster {
+        private final List<Location> members;
+        private final float latitude;
+        private final float longitude;
+
+        Cluster(List<Location> members) {
+            this.members = Collections.unmodifiableList(members);
+            if (members.size() == 1) {
+                this.latitude = members.get(0).getLatitude();
+                this.longitude = members.get(0).getLongitude();
+                return;
+            }
+            // The members are averaged as points on the sphere, so that clusters across the 180th meridian are
+            // centred next to their members rather than on the other side of the world
+            double x = 0;
+            double y = 0;
+            double z = 0;
+            for (Location member : members) {
+                double memberLatitude = Math.toRadians(member.getLatitude());
+                double memberLongitude = Math.toRadians(member.getLongitude());
+                x += Math.cos(memberLatitude) * Math.cos(memberLongitude);
+                y += Math.cos(memberLatitude) * Math.sin(memberLongitude);
+                z += Math.sin(memberLatitude);
+            }
+            this.latitude = (float) Math.toDegrees(Math.atan2(z, Math.sqrt(x * x + y * y)));
+            this.longitude = (float) Math.toDegrees(Math.atan2(y, x));
+        }
+
+        /**
+         * Getter for the locations in the cluster
+         *
+         * @return The locations, in the order they were planned
+         */
+        List<Location> getMembers() {
+            return members;
+        }
+
+        /**
+         * Getter for the latitude to request the forecast at
+         *
+         * @return The latitude of the centre of the members, or the exact one for a single location
+         */
+        float getLatitude() {
+            return latitude;
+        }
+
+        /**
+         * Getter for the longitude to request the forecast at
+         *
+         * @return The longitude of the centre of the members, or the exact one for a single location
+         */
+        float getLongitude() {
+            return longitude;
+        }
+    }
+
+    /**
+     * Clusters locations so that every member of a cluster is within a radius of both the location that started it
+     * and the centre the forecast is requested at
+     * Locations are taken in order, so the first location of each cluster is the earliest one in the list
+     *
+     * @param locations The locations to cluster
+     * @param radiusKm  The largest distance, in kilometres, between a cluster's first location or centre and the
+     *                  others; 0 puts every location in a cluster of its own
+     * @return The clusters covering every location exactly once
+     */
+    static List<Cluster> plan(Collection<Location> locations, double radiusKm) {
+        List<Location> unassigned = new ArrayList<>(locations);
+        List<Cluster> clusters = new ArrayList<>();
+        while (!unassigned.isEmpty()) {
+            Location seed = unassigned.get(0);
+            List<Location> members = new ArrayList<>();
+            members.add(seed);
+            if (radiusKm > 0) {
+                for (int i = 1; i < unassigned.size(); i++) {
+                    if (distanceKm(seed, unassigned.get(i)) <= radiusKm) {
+                        members.add(unassigned.get(i));
+                    }
+                }
+            }
+            Cluster cluster = new Cluster(members);
+            // Members too far from the centre are left for a later cluster, which moves the centre, so check again
+            while (members.size() > 1) {
+                List<Location> kept = new ArrayList<>();
+                kept.add(seed);
+                for (Location member : members.subList(1, members.size())) {
+                    if (distanceKm(cluster.getLatitude(), cluster.getLongitude(), member) <= radiusKm) {
+                        kept.add(member);
+                    }
+                }
+                if (kept.size() == members.size()) {
+                    break;
+                }
+                members = kept;
+                cluster = new Cluster(members);
+            }
+            if (distanceKm(cluster.getLatitude(), cluster.getLongitude(), seed) > radiusKm) {
+                members = Collections.singletonList(seed);
+                cluster = new Cluster(members);
+            }
+            Set<Location> assigned = Collections.newSetFromMap(new IdentityHashMap<>());
+            assigned.addAll(members);
+            unassigned.removeIf(assigned::contains);
+            clusters.add(cluster);
+        }
+        return clusters;
+    }
+
+    /**
+     * Great circle distance between two locations
+     *
+     * @param a The first location
+     * @param b The second location
+     * @return The distance in kilometres
+     */
+    static double distanceKm(Location a, Location b) {
+        return distanceKm(a.getLatitude(), a.getLongitude(), b);
+    }
+
+    /**
+     * Great circle distance between a point and a location
+     *
+     * @param latitude  The latitude of the point
+     * @param longitude The longitude of the point
+     * @param b         The location
+     * @return The distance in kilometres
+     */
+    static double distanceKm(double latitude, double longitude, Location b) {
+        double latitudeA = Math.toRadians(latitude);
+        double latitudeB = Math.toRadians(b.getLatitude());
+        double deltaLatitude = latitudeB - latitudeA;
+        double deltaLongitude = Math.toRadians(b.getLongitude() - longitude);
+        double h = Math.sin(deltaLatitude / 2) * Math.sin(deltaLatitude / 2)
+                + Math.cos(latitudeA) * Math.cos(latitudeB)
+                * Math.sin(deltaLongitude / 2) * Math.sin(deltaLongitude / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+}
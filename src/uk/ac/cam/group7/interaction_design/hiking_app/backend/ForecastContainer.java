@@ -1,11 +1,14 @@
 package uk.ac.cam.group7.interaction_design.hiking_app.backend;
 
+import org.bitpipeline.lib.owm.CircuitOpenException;
+import org.bitpipeline.lib.owm.Deadline;
+import org.bitpipeline.lib.owm.DeadlineExceededException;
+import org.bitpipeline.lib.owm.ForecastSeries;
 import org.bitpipeline.lib.owm.OwmClient;
+import org.bitpipeline.lib.owm.OwmTransport;
+import org.bitpipeline.lib.owm.QueryBuilder;
 import org.bitpipeline.lib.owm.StatusWeatherData;
 import org.bitpipeline.lib.owm.WeatherData;
-import org.bitpipeline.lib.owm.WeatherStatusResponse;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -14,6 +17,13 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Stores all locations and forecasts in a single format and provides an interface to access this data in a helpful way
@@ -23,50 +33,193 @@ import java.util.*;
  */
 public class ForecastContainer {
 
-    private final static ForecastContainer reference = new ForecastContainer();
-
-    private final static OwmClient api = new OwmClient();
+    // The API client must be set up before the singleton is built, as the constructor refreshes stale forecasts
+    private final static OwmClient api = createClient();
 
     static {
         api.setAPPID("d12c4a04b7d0170dff8f1afca1e4c0ff"); // API key for our application
+        // Allows pointing the app at another server, e.g. the OwmStubServer of the tests for offline testing
+        String apiUrl = System.getProperty("hikingapp.apiUrl");
+        if (apiUrl != null) {
+            api.setBaseUrl(apiUrl);
+        }
+        // Requests slower than this percentile of recent ones are sent again, and the first response is used;
+        // set with -Dhikingapp.hedgePercentile, 0 disables it
+        api.setHedging(Double.parseDouble(System.getProperty("hikingapp.hedgePercentile", "0.95")), 0.1);
+        api.getCircuitBreaker().addListener((from, to) ->
+                System.err.println("Weather API connection changed from " + from + " to " + to));
     }
 
-    private Map<Location, List<StatusWeatherData>> weatherDataMap;
+    // Number of locations loaded and refreshed at the same time on startup, set with -Dhikingapp.startupParallelism
+    private final static int startupParallelism = Math.max(1, Integer.getInteger("hikingapp.startupParallelism", 8));
+
+    // Time given to a forecast request the user is waiting for, set with -Dhikingapp.interactiveTimeoutMs
+    private final static long interactiveTimeout = Long.getLong("hikingapp.interactiveTimeoutMs", 5000);
+
+    // Time given to refreshing a forecast on startup, set with -Dhikingapp.refreshTimeoutMs
+    private final static long refreshTimeout = Long.getLong("hikingapp.refreshTimeoutMs", 20000);
+
+    // Locations closer than this many kilometres share one forecast request, set with -Dhikingapp.clusterRadiusKm
+    private final static double clusterRadiusKm =
+            Double.parseDouble(System.getProperty("hikingapp.clusterRadiusKm", "2"));
+
+    /**
+     * Creates the API client, over the pooled Apache HTTP client unless -Dhikingapp.transport=jdk asks for the JDK one
+     * The JDK transport needs Java 11 and the src-jdk11 folder on the source path, and only multiplexes requests over
+     * HTTP/2 with an https base URL
+     *
+     * @return The API client
+     */
+    private static OwmClient createClient() {
+        if ("jdk".equals(System.getProperty("hikingapp.transport"))) {
+            try {
+                return new OwmClient((OwmTransport) Class.forName("org.bitpipeline.lib.owm.JdkHttpTransport")
+                        .getDeclaredConstructor().newInstance());
+            } catch (ReflectiveOperationException | LinkageError e) {
+                System.err.println("Error: the JDK HTTP transport is not available, using the default one: " + e);
+            }
+        }
+        return new OwmClient();
+    }
+
+    /**
+     * Holds the singleton, so that it is built on the first call to getReference rather than while ForecastContainer
+     * is being initialised: the constructor waits for loading threads that use the static fields of ForecastContainer,
+     * which would block on its initialisation forever
+     */
+    private static class Holder {
+        private final static ForecastContainer reference = new ForecastContainer();
+    }
+
+    private Map<Location, ForecastSeries> weatherDataMap;
     private List<Location> favouriteLocations;
     private List<Location> recentLocations;
+    private long startupTime;
 
     /**
      * Loads previously saved data and tries to contact the API for fresh data
      * Generates warnings for the old data if it has changed
      */
     private ForecastContainer() {
+        long start = System.nanoTime();
         weatherDataMap = new HashMap<>();
         favouriteLocations = importLocations(Paths.get("data/favourites.csv"));
-        for (Location location : favouriteLocations) {
-            List<StatusWeatherData> historicData = JsonIO.readJson(location.getPath());
-            List<StatusWeatherData> currentData;
-            // Checks for 'freshness' off data
-            if (!(api == null) && historicData.get(0).getDateTime() - System.currentTimeMillis() / 1000 < -1800) {
-                currentData = getAPIResponse(location.getLatitude(), location.getLongitude(), location.getPath());
-            } else {
-                currentData = historicData;
-            }
-            generateWarnings(historicData, currentData, location);
-            weatherDataMap.put(location, currentData);
-        }
         recentLocations = importLocations(Paths.get("data/recent.csv"));
-        for (Location location : recentLocations) {
-            List<StatusWeatherData> historicData = JsonIO.readJson(location.getPath());
-            List<StatusWeatherData> currentData;
-            // Checks for 'freshness' off data
-            if (!(api == null) && historicData.get(0).getDateTime() - System.currentTimeMillis() / 1000 < -1800) {
-                currentData = getAPIResponse(location.getLatitude(), location.getLongitude(), location.getPath());
-            } else {
-                currentData = historicData;
+        List<Location> allLocations = new ArrayList<>(favouriteLocations);
+        allLocations.addAll(recentLocations);
+
+        List<Location> staleLocations = new ArrayList<>();
+        ExecutorService loader = Executors.newFixedThreadPool(startupParallelism);
+        try {
+            List<Future<ForecastSeries>> savedData = new ArrayList<>(allLocations.size());
+            for (Location location : allLocations) {
+                savedData.add(loader.submit(() -> JsonIO.readForecast(location.getPath())));
+            }
+            List<ForecastSeries> historicData = new ArrayList<>(allLocations.size());
+            for (int i = 0; i < allLocations.size(); i++) {
+                ForecastSeries historic = awaitForecast(savedData.get(i));
+                historicData.add(historic);
+                // Checks for 'freshness' off data
+                if (historic.isEmpty() || historic.getDateTime(0) - System.currentTimeMillis() / 1000 < -1800) {
+                    staleLocations.add(allLocations.get(i));
+                }
+            }
+
+            // Nearby stale locations are refreshed together with a single request
+            Map<Location, Future<ForecastSeries>> refreshedData = new HashMap<>();
+            for (BatchPlanner.Cluster cluster : BatchPlanner.plan(staleLocations, clusterRadiusKm)) {
+                Future<ForecastSeries> refresh = loader.submit(() -> getClusterResponse(cluster));
+                for (Location location : cluster.getMembers()) {
+                    refreshedData.put(location, refresh);
+                }
+            }
+
+            // Warnings are generated here rather than by the loading threads, in the same order as before
+            for (int i = 0; i < allLocations.size(); i++) {
+                Location location = allLocations.get(i);
+                ForecastSeries historic = historicData.get(i);
+                ForecastSeries current = null;
+                if (refreshedData.containsKey(location)) {
+                    current = awaitForecast(refreshedData.get(location));
+                }
+                if (current == null) {
+                    current = historic;
+                }
+                if (i < favouriteLocations.size() && !historic.isEmpty() && !current.isEmpty()) {
+                    generateWarnings(historic, current, location);
+                }
+                weatherDataMap.put(location, current);
             }
-            weatherDataMap.put(location, currentData);
+        } finally {
+            // Its threads would otherwise keep the JVM alive if loading failed
+            loader.shutdownNow();
         }
         saveLocations();
+        startupTime = (System.nanoTime() - start) / 1000000;
+        System.out.println("Startup took " + startupTime + " ms for " + allLocations.size() + " saved locations, "
+                + staleLocations.size() + " of them refreshed");
+    }
+
+    /**
+     * Fetches the forecast for a cluster of nearby locations with one request, and saves it for each of them
+     *
+     * @param cluster The locations to fetch the forecast for
+     * @return The forecast for the cluster, or null if it could not be fetched
+     */
+    private ForecastSeries getClusterResponse(BatchPlanner.Cluster cluster) {
+        OwmClient.Priority priority = OwmClient.Priority.RECENT;
+        for (Location location : cluster.getMembers()) {
+            if (location.isFavourite()) {
+                priority = OwmClient.Priority.FAVOURITE;
+            }
+        }
+        Path savedPath = cluster.getMembers().get(0).getPath();
+        Deadline deadline = Deadline.after(refreshTimeout);
+        // Each member falls back to its own saved forecast, so the saved one of the first isn't read here
+        ForecastSeries forecast = awaitResponse(getAPIResponseAsync(cluster.getLatitude(), cluster.getLongitude(),
+                savedPath, priority, deadline), deadline);
+        if (forecast != null) {
+            for (Location location : cluster.getMembers()) {
+                if (!location.getPath().equals(savedPath)) {
+                    JsonIO.copyForecast(savedPath, location.getPath());
+                }
+            }
+        }
+        return forecast;
+    }
+
+    /**
+     * Hands out forecasts without any slots as null, which the UI shows as having no data
+     * They are still kept, so that their locations are saved
+     *
+     * @param forecast The forecast, or null
+     * @return The forecast, or null if it is empty
+     */
+    private static ForecastSeries nullIfEmpty(ForecastSeries forecast) {
+        return forecast == null || forecast.isEmpty() ? null : forecast;
+    }
+
+    /**
+     * Waits for a location to be loaded on startup
+     *
+     * @param future The pending load
+     * @return The forecast loaded
+     */
+    private static ForecastSeries awaitForecast(Future<ForecastSeries> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Unable to load saved forecasts", e);
+        }
+    }
+
+    /**
+     * Gets how long loading and refreshing the saved locations took on startup
+     *
+     * @return The startup time in milliseconds
+     */
+    public long getStartupTime() {
+        return startupTime;
     }
 
     /**
@@ -75,7 +228,7 @@ public class ForecastContainer {
      * @return reference
      */
     public static ForecastContainer getReference() {
-        return reference;
+        return Holder.reference;
     }
 
     /**
@@ -101,23 +254,40 @@ public class ForecastContainer {
      * Updates the stored forecast if the data is more than 30 minutes old
      *
      * @param location The location for which the forecast is desired
-     * @return List<StatusWeatherData> The weather forecast for that location
+     * @return List<StatusWeatherData> The weather forecast for that location, or null if there is no data for it
      */
     public List<StatusWeatherData> getForecast(Location location) {
+        ForecastSeries forecast = getForecastSeries(location);
+        return forecast == null ? null : forecast.asList();
+    }
+
+    /**
+     * Fetches data on a stored location, as the arrays of each field, and updates the list of recently accessed
+     * locations
+     * Updates the stored forecast if the data is more than 30 minutes old
+     *
+     * @param location The location for which the forecast is desired
+     * @return The weather forecast for that location, or null if there is no data for it
+     */
+    public ForecastSeries getForecastSeries(Location location) {
         if (!(favouriteLocations.contains(location))) {
             if (recentLocations.contains(location)) {
                 recentLocations.remove(location);
             }
             addToRecent(location);
         }
-        if (!(api == null) && weatherDataMap.get(location).get(0).getDateTime() - (System.currentTimeMillis() / 1000)
-                < -1800) {
-            weatherDataMap.put(location, getAPIResponse(location.getLatitude(), location.getLongitude(),
-                    location.getPath()));
+        ForecastSeries saved = weatherDataMap.get(location);
+        if (!(api == null) && saved != null && !saved.isEmpty()
+                && saved.getDateTime(0) - (System.currentTimeMillis() / 1000) < -1800) {
+            ForecastSeries forecast = getAPIResponse(location.getLatitude(), location.getLongitude(),
+                    location.getPath(), OwmClient.Priority.INTERACTIVE, Deadline.after(interactiveTimeout));
+            if (forecast != null && !forecast.isEmpty()) {
+                weatherDataMap.put(location, forecast);
+            }
         } else if (!weatherDataMap.containsKey(location)) {
             weatherDataMap.put(location, null);
         }
-        return weatherDataMap.get(location);
+        return nullIfEmpty(weatherDataMap.get(location));
     }
 
     /**
@@ -207,35 +377,87 @@ public class ForecastContainer {
      * @param location The new location to add
      */
     public void addNewLocation(Location location) {
-        weatherDataMap.put(location, getAPIResponse(location.getLatitude(), location.getLongitude(),
-                location.getPath()));
+        ForecastSeries forecast = getAPIResponse(location.getLatitude(), location.getLongitude(),
+                location.getPath(), OwmClient.Priority.INTERACTIVE, Deadline.after(interactiveTimeout));
+        weatherDataMap.put(location, forecast);
         addToRecent(location);
         saveLocations();
     }
 
     /**
      * Gets a response from the API for a requested location
+     * Falls back to the forecast saved on a previous visit if the API can't be reached in time
      *
      * @param latitude  The latitude of the location
      * @param longitude The longitude of the location
      * @param path      The path to save the weather data at
-     * @return The forecast for that location
+     * @param priority  The priority of the request if the rate limit of the API key is reached
+     * @param deadline  The time by which the request is given up
+     * @return The forecast for that location, or null if it could not be fetched in time and none was saved
      */
-    private List<StatusWeatherData> getAPIResponse(Float latitude, Float longitude, Path path) {
+    private ForecastSeries getAPIResponse(Float latitude, Float longitude, Path path,
+                                          OwmClient.Priority priority, Deadline deadline) {
+        ForecastSeries forecast = awaitResponse(getAPIResponseAsync(latitude, longitude, path, priority, deadline),
+                deadline);
+        if (forecast == null && Files.exists(path)) {
+            forecast = JsonIO.readForecast(path);
+        }
+        return forecast;
+    }
+
+    /**
+     * Waits for a response from the API, no longer than its deadline
+     * The request gives up at its deadline too, but it may still be waiting for a thread to be sent from
+     *
+     * @param response The pending response
+     * @param deadline The time by which the request is given up
+     * @return The forecast, or null if it could not be fetched in time
+     */
+    private static ForecastSeries awaitResponse(CompletableFuture<ForecastSeries> response, Deadline deadline) {
         try {
-            String subUrl = String.format(Locale.ROOT, "forecast?lat=%f&lon=%f&",
-                    latitude, longitude);
-            JSONObject response = api.doQuery(subUrl);
-            WeatherStatusResponse nearbyStation = new WeatherStatusResponse(response);
-            List<StatusWeatherData> forecast = nearbyStation.getWeatherStatus();
-            JsonIO.saveJson(path, response);
-            return forecast;
-        } catch (IOException | JSONException e) {
+            return response.get(Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            System.err.println("Error: the API did not respond in time");
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
             e.printStackTrace();
             return null;
         }
     }
 
+    /**
+     * Requests a forecast from the API without blocking, so that many locations can be fetched at once
+     *
+     * @param latitude  The latitude of the location
+     * @param longitude The longitude of the location
+     * @param path      The path to save the weather data at
+     * @param priority  The priority of the request if the rate limit of the API key is reached
+     * @param deadline  The time by which the request is given up
+     * @return A future completed with the forecast for that location, or with null if it could not be fetched
+     */
+    private CompletableFuture<ForecastSeries> getAPIResponseAsync(Float latitude, Float longitude,
+                                                                  Path path, OwmClient.Priority priority,
+                                                                  Deadline deadline) {
+        String subUrl = QueryBuilder.query("forecast").param("lat", latitude).param("lon", longitude).build();
+        // The response is streamed to the JSON file while it is parsed, then saved in binary to load without parsing
+        return api.doQueryAsync(subUrl, priority, deadline, JsonIO.fileSink(path)).handle((response, e) -> {
+            if (e != null) {
+                if (e instanceof CircuitOpenException || e instanceof DeadlineExceededException) {
+                    System.err.println("Error: " + e.getMessage());
+                } else {
+                    e.printStackTrace();
+                }
+                return null;
+            }
+            ForecastSeries forecast = new ForecastSeries(response);
+            JsonIO.saveBinary(path, forecast);
+            return forecast;
+        });
+    }
+
     /**
      * Imports the save locations on disk on startup
      *
@@ -361,46 +583,49 @@ public class ForecastContainer {
      * @param newForecast The new forecast from the API response
      * @param location    The location to evaluate the warnings for
      */
-    private void generateWarnings(List<StatusWeatherData> oldForecast, List<StatusWeatherData> newForecast,
-                                  Location location) {
+    private void generateWarnings(ForecastSeries oldForecast, ForecastSeries newForecast, Location location) {
+        List<List<WeatherData.WeatherCondition.ConditionCode>> groups = WeatherGroupings.getGroups();
         int oldIndex = 0;
-        while (oldForecast.get(oldIndex).getDateTime() < newForecast.get(0).getDateTime()) {
+        while (oldIndex < oldForecast.size() && oldForecast.getDateTime(oldIndex) < newForecast.getDateTime(0)) {
             oldIndex++;
         }
-        for (int newIndex = 0; newIndex < oldForecast.size(); oldIndex++, newIndex++) {
-            if (oldForecast.get(oldIndex).getTemp() - newForecast.get(newIndex).getTemp() > 7) {
+        for (int newIndex = 0; oldIndex < oldForecast.size() && newIndex < newForecast.size();
+             oldIndex++, newIndex++) {
+            if (oldForecast.getTemp(oldIndex) - newForecast.getTemp(newIndex) > 7) {
                 location.addWarning(new Warning(WeatherData.WeatherCondition.ConditionCode.COLD,
                         "Colder than previously forecast"), 0);
             }
-            if (oldForecast.get(oldIndex).getTemp() - newForecast.get(newIndex).getTemp() < -7) {
+            if (oldForecast.getTemp(oldIndex) - newForecast.getTemp(newIndex) < -7) {
                 location.addWarning(new Warning(WeatherData.WeatherCondition.ConditionCode.HOT,
                         "Hotter than previously forecast"), 0);
             }
-            if (newForecast.get(newIndex).getWind().getSpeed() - oldForecast.get(oldIndex).getWind().getSpeed() > 10) {
+            if (newForecast.getWindSpeed(newIndex) - oldForecast.getWindSpeed(oldIndex) > 10) {
                 location.addWarning(new Warning(WeatherData.WeatherCondition.ConditionCode.WINDY,
                         "Windier than previously forecast"), 0);
             }
-            List<WeatherData.WeatherCondition.ConditionCode> forecastConditionGroup = new LinkedList<>();
-            for (List<WeatherData.WeatherCondition.ConditionCode> group : WeatherGroupings.getGroups()) {
+            List<WeatherData.WeatherCondition.ConditionCode> forecastConditionGroup = Collections.emptyList();
+            int newConditions = newForecast.getConditionCount(newIndex);
+            for (List<WeatherData.WeatherCondition.ConditionCode> group : groups) {
                 int correctGroup = 0;
-                for (WeatherData.WeatherCondition condition : newForecast.get(newIndex).getWeatherConditions()) {
-                    if (group.contains(condition.getCode())) {
+                for (int condition = 0; condition < newConditions; condition++) {
+                    if (group.contains(newForecast.getConditionCode(newIndex, condition))) {
                         correctGroup++;
                     }
                 }
-                if (correctGroup > newForecast.get(newIndex).getWeatherConditions().size() / 2) {
+                if (correctGroup > newConditions / 2) {
                     forecastConditionGroup = group;
                     break;
                 }
             }
             if (forecastConditionGroup.size() > 0) {
                 int correctGroup = 0;
-                for (WeatherData.WeatherCondition condition : oldForecast.get(oldIndex).getWeatherConditions()) {
-                    if (forecastConditionGroup.contains(condition.getCode())) {
+                int oldConditions = oldForecast.getConditionCount(oldIndex);
+                for (int condition = 0; condition < oldConditions; condition++) {
+                    if (forecastConditionGroup.contains(oldForecast.getConditionCode(oldIndex, condition))) {
                         correctGroup++;
                     }
                 }
-                if (correctGroup < oldForecast.get(oldIndex).getWeatherConditions().size() / 2) {
+                if (correctGroup < oldConditions / 2) {
                     if (!(forecastConditionGroup.get(0) == WeatherData.WeatherCondition.ConditionCode.UNKNOWN)) {
                         location.addWarning(new Warning(forecastConditionGroup.get(0),
                                         "Weather conditions have changed"),
@@ -1,5 +1,6 @@
 package uk.ac.cam.group7.interaction_design.hiking_app.backend;
 
+import org.bitpipeline.lib.owm.ForecastSeries;
 import org.bitpipeline.lib.owm.StatusWeatherData;
 
 import java.time.DayOfWeek;
@@ -26,20 +27,26 @@ public class ForecastFormatting {
 
     /**
      * Sorts the forecast into daily forecasts
+     * Only the times of the forecast are scanned, and only the slots kept are built as StatusWeatherData
      *
-     * @param allForecasts The full forecast
-     * @return Sorted daily forecast
+     * @param allForecasts The full forecast, or null if there is no data
+     * @return Sorted daily forecast, or null if there is no data
      */
-    public static Map<DayOfWeek, List<StatusWeatherData>> getDailyForecasts(List<StatusWeatherData> allForecasts) {
+    public static Map<DayOfWeek, List<StatusWeatherData>> getDailyForecasts(ForecastSeries allForecasts) {
+        if (allForecasts == null) {
+            return null;
+        }
         Map<DayOfWeek, List<StatusWeatherData>> dailyForecasts = new HashMap<>();
 
-        long currentDay = (System.currentTimeMillis() / 1000) / 86400;
+        long now = System.currentTimeMillis() / 1000;
+        long currentDay = now / 86400;
         int today = getToady().getValue();
-        for (StatusWeatherData forecast : allForecasts) {
-            if (forecast.getDateTime() - (System.currentTimeMillis() / 1000) < -10800) {
+        for (int i = 0; i < allForecasts.size(); i++) {
+            long dateTime = allForecasts.getDateTime(i);
+            if (dateTime - now < -10800) {
                 continue;
             }
-            long forecastDay = forecast.getDateTime() / 86400;
+            long forecastDay = dateTime / 86400;
             int forecastDayValue = today;
             while (forecastDay > currentDay) {
                 forecastDayValue++;
@@ -49,6 +56,7 @@ public class ForecastFormatting {
                 forecastDayValue -= 7;
             }
             DayOfWeek dayValue = DayOfWeek.of(forecastDayValue);
+            StatusWeatherData forecast = allForecasts.getStatusWeatherData(i);
             if (dailyForecasts.containsKey(dayValue)) {
                 dailyForecasts.get(dayValue).add(forecast);
             } else {
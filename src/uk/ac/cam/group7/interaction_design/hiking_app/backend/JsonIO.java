@@ -1,29 +1,60 @@
 package uk.ac.cam.group7.interaction_design.hiking_app.backend;
 
-import org.bitpipeline.lib.owm.StatusWeatherData;
-import org.bitpipeline.lib.owm.WeatherStatusResponse;
+import org.bitpipeline.lib.owm.BinaryForecastIO;
+import org.bitpipeline.lib.owm.ForecastSeries;
+import org.bitpipeline.lib.owm.ResponseSink;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.List;
+import java.nio.file.StandardCopyOption;
 
 /**
  * Reads and writes JSON files to disk
+ * Each forecast is also kept in a binary file next to its JSON file, which loads without parsing text
  *
  * @author Dávid, Sam Gooch
  */
 class JsonIO {
 
+    private static final String JSON_EXTENSION = ".json";
+    private static final String BINARY_EXTENSION = ".bin";
+
+    /**
+     * Reads a saved forecast from disk
+     * The binary file is read if it is at least as recent as the JSON file; otherwise the JSON file is read and the
+     * binary file written from it, so that the next load doesn't parse JSON
+     *
+     * @param path The path to the JSON file on disk
+     * @return The forecast stored in the files
+     */
+    static ForecastSeries readForecast(Path path) {
+        Path binaryPath = binaryPath(path);
+        try {
+            if (Files.exists(binaryPath) && (!Files.exists(path)
+                    || Files.getLastModifiedTime(binaryPath).compareTo(Files.getLastModifiedTime(path)) >= 0)) {
+                return BinaryForecastIO.read(ByteBuffer.wrap(Files.readAllBytes(binaryPath)));
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage() + ", reading " + path + " instead");
+        }
+        ForecastSeries forecast = readJson(path);
+        if (!forecast.isEmpty()) {
+            saveBinary(path, forecast);
+        }
+        return forecast;
+    }
+
     /**
      * Reads a JSON file in from disk
      *
      * @param path The path to the file on disk
-     * @return List<StatusWeatherData> The forecast stored in the file
+     * @return The forecast stored in the file
      */
-    static List<StatusWeatherData> readJson(Path path) {
+    static ForecastSeries readJson(Path path) {
         String read;
         JSONObject json = new JSONObject();
         try {
@@ -46,23 +77,177 @@ class JsonIO {
             System.out.println(e.getMessage());
         }
 
-        return new WeatherStatusResponse(json).getWeatherStatus();
+        return new ForecastSeries(json);
+    }
+
+    /**
+     * Copies a saved forecast on disk, e.g. to save one forecast for several locations
+     * The binary file is copied after the JSON file, so that it stays at least as recent
+     *
+     * @param source The path to the JSON file to copy
+     * @param target The path to copy the JSON file to
+     */
+    static void copyForecast(Path source, Path target) {
+        try {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+            if (Files.exists(binaryPath(source))) {
+                Files.copy(binaryPath(source), binaryPath(target), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e);
+        }
+    }
+
+    /**
+     * Writes the binary file of a forecast to disk, next to its JSON file
+     * The file is written to a temporary file first, which then replaces the file in one step
+     *
+     * @param path     The path to the JSON file of the forecast
+     * @param forecast The forecast to save
+     */
+    static void saveBinary(Path path, ForecastSeries forecast) {
+        Path binaryPath = binaryPath(path);
+        Path temp = null;
+        try {
+            temp = createTempFile(binaryPath);
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                BinaryForecastIO.write(forecast, out);
+            }
+            replaceFile(temp, binaryPath);
+        } catch (IOException e) {
+            System.err.println("Error: " + e);
+            deleteQuietly(temp);
+            // An old binary file could still look as recent as the new JSON file, so drop it to have the JSON read
+            deleteQuietly(binaryPath);
+        }
+    }
+
+    /**
+     * Gets the path of the binary file of a forecast
+     *
+     * @param path The path to the JSON file of the forecast
+     * @return The path to the binary file, next to it
+     */
+    static Path binaryPath(Path path) {
+        String name = path.getFileName().toString();
+        if (name.endsWith(JSON_EXTENSION)) {
+            name = name.substring(0, name.length() - JSON_EXTENSION.length());
+        }
+        return path.resolveSibling(name + BINARY_EXTENSION);
     }
 
     /**
      * Writes a JSON file to disk
+     * The JSON is written to a temporary file first, which then replaces the file in one step
      *
      * @param path The path to the file on disk to write to
      * @param data The JSON file to save
      */
     static void saveJson(Path path, JSONObject data) {
+        Path temp = null;
         try {
-            BufferedWriter w = Files.newBufferedWriter(path);
-            w.write(data.toString());
-            w.flush();
-            w.close();
-        } catch (IOException e) {
+            temp = createTempFile(path);
+            try (Writer w = Files.newBufferedWriter(temp)) {
+                data.write(w);
+            }
+            replaceFile(temp, path);
+        } catch (IOException | JSONException e) {
             System.err.println("Error: " + e);
+            deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * Makes a sink that saves the responses of the API to a file while they are read, without serialising them again
+     * Each response is streamed to a temporary file, which then replaces the file in one step
+     *
+     * @param path The path to the file on disk to write to
+     * @return The sink to pass to the API client
+     */
+    static ResponseSink fileSink(Path path) {
+        return new ResponseSink() {
+            @Override
+            public Copy open() throws IOException {
+                Path temp = createTempFile(path);
+                OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp));
+                return new Copy() {
+                    @Override
+                    public OutputStream getStream() {
+                        return out;
+                    }
+
+                    @Override
+                    public void commit() throws IOException {
+                        out.close();
+                        replaceFile(temp, path);
+                    }
+
+                    @Override
+                    public void discard() {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            // The file is deleted anyway
+                        }
+                        deleteQuietly(temp);
+                    }
+                };
+            }
+
+            @Override
+            public void save(JSONObject json, boolean unchanged) {
+                // The file already holds the last response, which the API says hasn't changed
+                if (!unchanged || !Files.exists(path)) {
+                    saveJson(path, json);
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates a temporary file next to a file, so that it can replace it
+     *
+     * @param path The file to replace
+     * @return The path to the temporary file
+     */
+    private static Path createTempFile(Path path) throws IOException {
+        return Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+    }
+
+    /**
+     * Replaces a file with another one, in one step where the file system supports it
+     * If the atomic move fails for any reason (e.g. it isn't supported, or Windows refuses to replace a file that is
+     * open), the file is replaced with a plain move instead
+     *
+     * @param source The new file
+     * @param target The file to replace
+     * @throws IOException If the file couldn't be replaced either way; the new file is left for the caller to delete
+     */
+    private static void replaceFile(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            try {
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException retry) {
+                retry.addSuppressed(e);
+                throw retry;
+            }
+        }
+    }
+
+    /**
+     * Deletes a file, ignoring errors
+     *
+     * @param path The file to delete, or null
+     */
+    private static void deleteQuietly(Path path) {
+        if (path != null) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.err.println("Error: " + e);
+            }
         }
     }
 }
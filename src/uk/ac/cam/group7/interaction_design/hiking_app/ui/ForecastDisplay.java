@@ -44,7 +44,7 @@ class ForecastDisplay {
      */
     ForecastDisplay(Location location, MainMenu main) {
         this.location = location;
-        this.dailyForecasts = ForecastFormatting.getDailyForecasts(forecasts.getForecast(location));
+        this.dailyForecasts = ForecastFormatting.getDailyForecasts(forecasts.getForecastSeries(location));
         this.main = main;
         if (dailyForecasts == null) {
             currentDay = null;
@@ -13,6 +13,7 @@ import javafx.scene.image.ImageView;
 import javafx.scene.layout.*;
 import javafx.scene.text.TextAlignment;
 import javafx.stage.Stage;
+import org.bitpipeline.lib.owm.StatusWeatherData;
 import uk.ac.cam.group7.interaction_design.hiking_app.backend.ForecastContainer;
 import uk.ac.cam.group7.interaction_design.hiking_app.backend.ForecastFormatting;
 import uk.ac.cam.group7.interaction_design.hiking_app.backend.Location;
@@ -208,7 +209,8 @@ public class MainMenu extends Application {
             Button name = new Button(location.getName());
             name.setOnAction(event -> makeForecastDisplay(location));
             display.add(name, 1, row);
-            if (forecasts.getForecast(location) == null) {
+            List<StatusWeatherData> forecast = forecasts.getForecast(location);
+            if (forecast == null || forecast.isEmpty()) {
                 row++;
                 continue;
             }
@@ -220,13 +222,13 @@ public class MainMenu extends Application {
                 display.add(warningIcon, 2, row);
             }
             Label temperature = new Label(ForecastFormatting.normaliseTemperature(
-                    forecasts.getForecast(location).get(0).getTemp()) + "\u00b0" + "C");
+                    forecast.get(0).getTemp()) + "\u00b0" + "C");
             temperature.setTextAlignment(TextAlignment.RIGHT);
             GridPane.setConstraints(temperature, 3, row, 1, 1, HPos.RIGHT, VPos.CENTER);
             display.add(temperature, 3, row);
             ImageView type = WeatherIconMaker.getIconImage(
-                    forecasts.getForecast(location).get(0).getWeatherConditions(),
-                    forecasts.getForecast(location).get(0).getDateTime());
+                    forecast.get(0).getWeatherConditions(),
+                    forecast.get(0).getDateTime());
             GridPane.setConstraints(type, 4, row, 1, 1, HPos.RIGHT, VPos.CENTER);
             display.add(type, 4, row);
             row++;
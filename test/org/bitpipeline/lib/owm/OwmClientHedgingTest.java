@@ -0,0 +1,150 @@
+package org.bitpipeline.lib.owm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.impl.client.HttpClients;
+import org.json.JSONObject;
+
+/** Checks that a hedged query aborts the request that lost the race and only hands the
+ * response of the winner to its sink.
+ * Run as a program: it throws an AssertionError on the first check that fails. */
+public class OwmClientHedgingTest {
+	static private final long BASE_TIME = 1500000000L;
+	static private final long STALL_MILLIS = 2000;
+
+	public static void main (String[] args) throws Exception {
+		OwmClientHedgingTest.loserIsAbortedAndNotSaved ();
+		System.out.println ("OwmClientHedgingTest passed");
+	}
+
+	static void loserIsAbortedAndNotSaved () throws Exception {
+		OwmStubServer stub = new OwmStubServer (OwmClientHedgingTest.BASE_TIME);
+		stub.setLatency (20, 0);
+		stub.start ();
+		try {
+			CountingTransport transport = new CountingTransport (new ApacheHttpTransport (HttpClients.createDefault ()));
+			OwmClient client = new OwmClient (transport);
+			client.setBaseUrl (stub.getBaseUrl ());
+			client.setRateLimit (0);
+			client.setRetryPolicy (1, 0, 0);
+			client.setHedging (0.5, 1);
+			for (int i = 0; i < 20; i++) // Timed requests, before hedging starts
+				client.doQuery (OwmClientHedgingTest.query (i));
+
+			stub.setStalls (0.5, OwmClientHedgingTest.STALL_MILLIS);
+			CountingSink sink = new CountingSink ();
+			for (int i = 20; i < 30; i++) {
+				client.doQuery (OwmClientHedgingTest.query (i), OwmClient.Priority.INTERACTIVE, Deadline.none (), sink);
+				long waitUntil = System.currentTimeMillis () + OwmClientHedgingTest.STALL_MILLIS / 4;
+				while (transport.active.get () > 0 && System.currentTimeMillis () < waitUntil)
+					Thread.sleep (10);
+				OwmClientHedgingTest.check (transport.active.get () == 0,
+						"query " + i + " left " + transport.active.get () + " request running");
+			}
+			OwmClientHedgingTest.check (client.getStats ().getHedges () > 0, "no query was hedged");
+			OwmClientHedgingTest.check (sink.commits.get () + sink.saves.get () == 10,
+					"10 responses should be saved, got " + sink.commits.get () + " copies and " + sink.saves.get () + " others");
+		} finally {
+			stub.stop ();
+		}
+	}
+
+	static private String query (int i) {
+		return QueryBuilder.query ("forecast").param ("lat", 52.2f).param ("lon", (float) i).build ();
+	}
+
+	/** Counts the requests still holding a connection */
+	static private class CountingTransport implements OwmTransport {
+		private final OwmTransport transport;
+		final AtomicInteger active = new AtomicInteger ();
+
+		CountingTransport (OwmTransport transport) {
+			this.transport = transport;
+		}
+
+		@Override
+		public Response get (String url, Map<String, String> headers, Deadline deadline) throws IOException {
+			this.active.incrementAndGet ();
+			final Response response;
+			try {
+				response = this.transport.get (url, headers, deadline);
+			} catch (IOException | RuntimeException e) {
+				this.active.decrementAndGet ();
+				throw e;
+			}
+			final AtomicBoolean released = new AtomicBoolean ();
+			return new Response () {
+				@Override
+				public int getStatusCode () {
+					return response.getStatusCode ();
+				}
+
+				@Override
+				public String getHeader (String name) {
+					return response.getHeader (name);
+				}
+
+				@Override
+				public InputStream getBody () throws IOException {
+					return response.getBody ();
+				}
+
+				@Override
+				public void close () {
+					response.close ();
+					if (released.compareAndSet (false, true))
+						CountingTransport.this.active.decrementAndGet ();
+				}
+
+				@Override
+				public void abort () {
+					response.abort ();
+					if (released.compareAndSet (false, true))
+						CountingTransport.this.active.decrementAndGet ();
+				}
+			};
+		}
+	}
+
+	/** Counts the responses saved */
+	static private class CountingSink implements ResponseSink {
+		final AtomicInteger commits = new AtomicInteger ();
+		final AtomicInteger saves = new AtomicInteger ();
+
+		@Override
+		public Copy open () {
+			final ByteArrayOutputStream stream = new ByteArrayOutputStream ();
+			return new Copy () {
+				@Override
+				public OutputStream getStream () {
+					return stream;
+				}
+
+				@Override
+				public void commit () {
+					CountingSink.this.commits.incrementAndGet ();
+				}
+
+				@Override
+				public void discard () {
+				}
+			};
+		}
+
+		@Override
+		public void save (JSONObject json, boolean unchanged) {
+			this.saves.incrementAndGet ();
+		}
+	}
+
+	static private void check (boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError (message);
+	}
+}
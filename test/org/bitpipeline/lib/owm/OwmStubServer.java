@@ -0,0 +1,381 @@
+package org.bitpipeline.lib.owm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/** A local HTTP server answering like the Open Weather Map service, to exercise an
+ * OwmClient without the live service, e.g. for offline load testing.
+ * It serves the <code>forecast</code>, <code>find/*</code>, <code>weather/*</code>,
+ * <code>history/*</code> and <code>group</code> queries. A query is answered with the
+ * response recorded for its endpoint, if there is one, or else with a synthetic response
+ * generated from its parameters. Synthetic responses and injected errors only depend on
+ * the query, the seed and the base time given to the server, so runs are repeatable.
+ * Responses carry an ETag and are compressed when the client accepts gzip.
+ * <pre>
+ * OwmStubServer stub = new OwmStubServer (System.currentTimeMillis () / 1000);
+ * stub.setLatency (50, 20);
+ * stub.start ();
+ * OwmClient client = new OwmClient ();
+ * client.setBaseUrl (stub.getBaseUrl ());
+ * </pre>
+ * @see OwmClient#setBaseUrl(String) */
+public class OwmStubServer {
+	static private final String[] ENDPOINTS = {"forecast", "find", "weather", "history", "group"};
+	static private final int[] CONDITION_IDS = {800, 801, 802, 803, 804, 500, 501, 520, 600, 701, 211};
+	static private final String[] CONDITION_MAINS = {"Clear", "Clouds", "Clouds", "Clouds", "Clouds",
+			"Rain", "Rain", "Rain", "Snow", "Mist", "Thunderstorm"};
+	static private final String[] CONDITION_DESCRIPTIONS = {"sky is clear", "few clouds", "scattered clouds",
+			"broken clouds", "overcast clouds", "light rain", "moderate rain", "light intensity shower rain",
+			"light snow", "mist", "thunderstorm"};
+	static private final String[] CONDITION_ICONS = {"01", "02", "03", "04", "04", "10", "10", "09", "13", "50", "11"};
+	static private final long SLOT_SECONDS = 3 * 3600;
+
+	private final Map<String, byte[]> recordings = new ConcurrentHashMap<String, byte[]> ();
+	private final Map<String, AtomicInteger> timesQueried = new ConcurrentHashMap<String, AtomicInteger> ();
+	private final AtomicLong requests = new AtomicLong ();
+	private final AtomicLong errors = new AtomicLong ();
+
+	private volatile long latencyMillis = 0;
+	private volatile long latencyJitterMillis = 0;
+	private volatile double errorRate = 0;
+	private volatile double stallRate = 0;
+	private volatile long stallMillis = 0;
+	private volatile int slots = 40;
+	private volatile long seed = 0;
+
+	private final long baseTime;
+	private HttpServer server = null;
+	private ExecutorService executor = null;
+
+	/** @param baseTime is the time, in seconds since the epoch, the synthetic responses are
+	 * 	made at: forecasts start at the last 3 hour slot before it and history ends just before it */
+	public OwmStubServer (long baseTime) {
+		this.baseTime = baseTime;
+	}
+
+	/** Set the time taken to answer every query
+	 * @param latencyMillis is the minimum time, in milliseconds, before answering
+	 * @param jitterMillis is the largest random time, in milliseconds, added to it */
+	public void setLatency (long latencyMillis, long jitterMillis) {
+		this.latencyMillis = latencyMillis;
+		this.latencyJitterMillis = jitterMillis;
+	}
+
+	/** Make some queries stall, to reproduce the long tail of the OWM server latency
+	 * @param stallRate is the fraction, between 0 and 1, of queries that stall
+	 * @param stallMillis is the time, in milliseconds, a stalled query waits on top of the latency */
+	public void setStalls (double stallRate, long stallMillis) {
+		if (stallRate < 0 || stallRate > 1)
+			throw new IllegalArgumentException ("The stall rate must be between 0 and 1");
+		this.stallRate = stallRate;
+		this.stallMillis = stallMillis;
+	}
+
+	/** @param errorRate is the fraction, between 0 and 1, of queries answered with a 503 error */
+	public void setErrorRate (double errorRate) {
+		if (errorRate < 0 || errorRate > 1)
+			throw new IllegalArgumentException ("The error rate must be between 0 and 1");
+		this.errorRate = errorRate;
+	}
+
+	/** @param slots is the number of entries in the list of synthetic responses, which sets their size */
+	public void setPayloadSlots (int slots) {
+		if (slots < 1)
+			throw new IllegalArgumentException ("A synthetic response needs at least one entry");
+		this.slots = slots;
+	}
+
+	/** @param seed is the seed of the synthetic responses and injected errors */
+	public void setSeed (long seed) {
+		this.seed = seed;
+	}
+
+	/** Answer every query to an endpoint with a recorded response
+	 * @param endpoint is the first part of the query path: forecast, find, weather, history or group
+	 * @param body is the JSON response to replay */
+	public void record (String endpoint, String body) {
+		this.recordings.put (endpoint, body.getBytes (StandardCharsets.UTF_8));
+	}
+
+	/** Load recorded responses from a directory holding files named after their endpoint,
+	 * e.g. <code>forecast.json</code> or <code>history.json</code>
+	 * @param directory is the directory with the recorded responses
+	 * @throws IOException if the directory can't be read */
+	public void loadRecordings (Path directory) throws IOException {
+		for (String endpoint : OwmStubServer.ENDPOINTS) {
+			Path recording = directory.resolve (endpoint + ".json");
+			if (Files.isReadable (recording))
+				this.recordings.put (endpoint, Files.readAllBytes (recording));
+		}
+	}
+
+	/** Start answering queries on a free port of the loopback interface
+	 * @throws IOException if the server can't be started */
+	public synchronized void start () throws IOException {
+		start (0);
+	}
+
+	/** Start answering queries on the loopback interface
+	 * @param port is the port to listen on, 0 for any free port
+	 * @throws IOException if the server can't be started */
+	public synchronized void start (int port) throws IOException {
+		if (this.server != null)
+			throw new IllegalStateException ("The stub server is already running");
+		this.server = HttpServer.create (new InetSocketAddress (InetAddress.getLoopbackAddress (), port), 0);
+		this.server.createContext ("/", this::handle);
+		this.executor = Executors.newCachedThreadPool (runnable -> {
+			Thread thread = new Thread (runnable, "owm-stub-server");
+			thread.setDaemon (true);
+			return thread;
+		});
+		this.server.setExecutor (this.executor);
+		this.server.start ();
+	}
+
+	public synchronized void stop () {
+		if (this.server == null)
+			return;
+		this.server.stop (0);
+		this.executor.shutdownNow ();
+		this.server = null;
+		this.executor = null;
+	}
+
+	/** @return the URL to give to {@link OwmClient#setBaseUrl(String)} */
+	public synchronized String getBaseUrl () {
+		if (this.server == null)
+			throw new IllegalStateException ("The stub server is not running");
+		InetSocketAddress address = this.server.getAddress ();
+		return "http://" + address.getHostString () + ":" + address.getPort () + "/";
+	}
+
+	/** @return the number of queries received */
+	public long getRequests () {
+		return this.requests.get ();
+	}
+
+	/** @return the number of queries answered with an injected error */
+	public long getErrors () {
+		return this.errors.get ();
+	}
+
+	private void handle (HttpExchange exchange) throws IOException {
+		try {
+			this.requests.incrementAndGet ();
+			/* The request body must be read to its end, or the server resets the keep-alive
+			 * connection after a reply without a body, such as a 304 */
+			try (InputStream requestBody = exchange.getRequestBody ()) {
+				byte[] discarded = new byte[512];
+				while (requestBody.read (discarded) >= 0) {
+					/* Discarded */
+				}
+			}
+			URI uri = exchange.getRequestURI ();
+			String path = uri.getPath ().substring (1);
+			String query = uri.getRawQuery () != null ? uri.getRawQuery () : "";
+			/* Latency and errors depend on the query and how many times it was asked, not on
+			 * the order queries arrive in */
+			AtomicInteger times = this.timesQueried.computeIfAbsent (path + "?" + query, key -> new AtomicInteger ());
+			int attempt = times.incrementAndGet ();
+			Random random = new Random (this.seed ^ (31L * path.hashCode () + query.hashCode ()) ^ (attempt * 0x9E3779B97F4A7C15L));
+
+			long delay = this.latencyMillis;
+			if (this.latencyJitterMillis > 0)
+				delay += (long) (random.nextDouble () * this.latencyJitterMillis);
+			if (random.nextDouble () < this.stallRate)
+				delay += this.stallMillis;
+			if (delay > 0)
+				TimeUnit.MILLISECONDS.sleep (delay);
+
+			if (random.nextDouble () < this.errorRate) {
+				this.errors.incrementAndGet ();
+				exchange.sendResponseHeaders (503, -1);
+				return;
+			}
+
+			String endpoint = path.indexOf ('/') < 0 ? path : path.substring (0, path.indexOf ('/'));
+			byte[] body = this.recordings.get (endpoint);
+			if (body == null) {
+				String synthetic = synthesize (endpoint, path, OwmStubServer.parseQuery (query));
+				if (synthetic == null) {
+					exchange.sendResponseHeaders (404, -1);
+					return;
+				}
+				body = synthetic.getBytes (StandardCharsets.UTF_8);
+			}
+
+			String etag = "\"" + Integer.toHexString (Arrays.hashCode (body)) + "\"";
+			exchange.getResponseHeaders ().set ("ETag", etag);
+			if (etag.equals (exchange.getRequestHeaders ().getFirst ("If-None-Match"))) {
+				exchange.sendResponseHeaders (304, -1);
+				return;
+			}
+			exchange.getResponseHeaders ().set ("Content-Type", "application/json; charset=utf-8");
+			String acceptEncoding = exchange.getRequestHeaders ().getFirst ("Accept-Encoding");
+			if (acceptEncoding != null && acceptEncoding.contains ("gzip")) {
+				ByteArrayOutputStream compressed = new ByteArrayOutputStream (body.length / 4);
+				try (GZIPOutputStream gzip = new GZIPOutputStream (compressed)) {
+					gzip.write (body);
+				}
+				body = compressed.toByteArray ();
+				exchange.getResponseHeaders ().set ("Content-Encoding", "gzip");
+			}
+			exchange.sendResponseHeaders (200, body.length);
+			try (OutputStream out = exchange.getResponseBody ()) {
+				out.write (body);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread ().interrupt ();
+		} finally {
+			exchange.close ();
+		}
+	}
+
+	static private Map<String, String> parseQuery (String query) {
+		Map<String, String> parameters = new HashMap<String, String> ();
+		for (String parameter : query.split ("&")) {
+			int separator = parameter.indexOf ('=');
+			if (separator > 0)
+				parameters.put (parameter.substring (0, separator), parameter.substring (separator + 1));
+		}
+		return parameters;
+	}
+
+	private String synthesize (String endpoint, String path, Map<String, String> query) {
+		float lat = OwmStubServer.parseFloat (query.get ("lat"), 52.2f);
+		float lon = OwmStubServer.parseFloat (query.get ("lon"), 0.12f);
+		int id = OwmStubServer.parseId (path, query);
+		/* Same query, same response */
+		Random random = new Random (this.seed ^ (31L * endpoint.hashCode () + Float.floatToIntBits (lat)) * 31 + Float.floatToIntBits (lon) + id);
+		long now = this.baseTime;
+		long firstSlot = now - now % OwmStubServer.SLOT_SECONDS;
+		StringBuilder json = new StringBuilder (this.slots * 400);
+		switch (endpoint) {
+			case "forecast":
+				json.append ("{\"cod\":\"200\",\"message\":0.01,\"cnt\":").append (this.slots).append (",\"list\":[");
+				for (int i = 0; i < this.slots; i++) {
+					if (i > 0)
+						json.append (',');
+					appendStatus (json, random, firstSlot + i * OwmStubServer.SLOT_SECONDS, id, lat, lon);
+				}
+				json.append ("],\"city\":{\"id\":").append (id).append (",\"name\":\"Stub ").append (id)
+						.append ("\",\"coord\":{\"lat\":").append (lat).append (",\"lon\":").append (lon)
+						.append ("},\"country\":\"GB\"}}");
+				return json.toString ();
+			case "group":
+				String[] ids = query.containsKey ("id") ? query.get ("id").split ("%2C|,") : new String[0];
+				json.append ("{\"cnt\":").append (ids.length).append (",\"list\":[");
+				for (int i = 0; i < ids.length; i++) {
+					if (i > 0)
+						json.append (',');
+					int cityId;
+					try {
+						cityId = Integer.parseInt (ids[i]);
+					} catch (NumberFormatException e) {
+						cityId = i;
+					}
+					appendStatus (json, random, now, cityId, lat, lon);
+				}
+				json.append ("]}");
+				return json.toString ();
+			case "find":
+				json.append ("{\"cod\":\"200\",\"message\":\"calctime=0.01\",\"calctime\":0.01,\"cnt\":")
+						.append (this.slots).append (",\"list\":[");
+				for (int i = 0; i < this.slots; i++) {
+					if (i > 0)
+						json.append (',');
+					float stationLat = lat + (random.nextFloat () - 0.5f) * 0.2f;
+					float stationLon = lon + (random.nextFloat () - 0.5f) * 0.2f;
+					appendStatus (json, random, now, id + i, stationLat, stationLon);
+				}
+				json.append ("]}");
+				return json.toString ();
+			case "weather":
+				appendStatus (json, random, now, id, lat, lon);
+				return json.toString ();
+			case "history":
+				json.append ("{\"cod\":\"200\",\"message\":\"\",\"type\":\"tick\",\"calctime\":\"tick = 0.01 fetch = 0.02 find = 0.03 total=0.06\",")
+						.append (path.startsWith ("history/city") ? "\"city_id\":" : "\"station_id\":").append (id)
+						.append (",\"cnt\":").append (this.slots).append (",\"list\":[");
+				for (int i = 0; i < this.slots; i++) {
+					if (i > 0)
+						json.append (',');
+					appendStatus (json, random, now - (this.slots - i) * 600L, id, lat, lon);
+				}
+				json.append ("]}");
+				return json.toString ();
+			default:
+				return null;
+		}
+	}
+
+	static private void appendStatus (StringBuilder json, Random random, long dt, int id, float lat, float lon) {
+		int condition = random.nextInt (OwmStubServer.CONDITION_IDS.length);
+		float temp = 270 + random.nextFloat () * 30;
+		json.append ("{\"id\":").append (id)
+				.append (",\"name\":\"Stub ").append (id)
+				.append ("\",\"dt\":").append (dt)
+				.append (",\"coord\":{\"lat\":").append (lat).append (",\"lon\":").append (lon)
+				.append ("},\"main\":{\"temp\":").append (temp)
+				.append (",\"temp_min\":").append (temp - random.nextFloat () * 3)
+				.append (",\"temp_max\":").append (temp + random.nextFloat () * 3)
+				.append (",\"pressure\":").append (980 + random.nextInt (60))
+				.append (",\"humidity\":").append (random.nextInt (101))
+				.append ("},\"weather\":[{\"id\":").append (OwmStubServer.CONDITION_IDS[condition])
+				.append (",\"main\":\"").append (OwmStubServer.CONDITION_MAINS[condition])
+				.append ("\",\"description\":\"").append (OwmStubServer.CONDITION_DESCRIPTIONS[condition])
+				.append ("\",\"icon\":\"").append (OwmStubServer.CONDITION_ICONS[condition])
+				.append (dt % 86400 < 43200 ? "d" : "n")
+				.append ("\"}],\"clouds\":{\"all\":").append (random.nextInt (101))
+				.append ("},\"wind\":{\"speed\":").append (random.nextFloat () * 15)
+				.append (",\"deg\":").append (random.nextInt (360))
+				.append ("},\"rain\":{\"3h\":").append (random.nextInt (5))
+				.append ("}}");
+	}
+
+	static private float parseFloat (String value, float defaultValue) {
+		if (value == null)
+			return defaultValue;
+		try {
+			return Float.parseFloat (value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/** @return the id of the city or station in the path (e.g. weather/city/1234), or a
+	 * 	hash of the query when there is none */
+	static private int parseId (String path, Map<String, String> query) {
+		int lastSlash = path.lastIndexOf ('/');
+		if (lastSlash >= 0) {
+			try {
+				return Integer.parseInt (path.substring (lastSlash + 1));
+			} catch (NumberFormatException e) {
+				/* No id in the path */
+			}
+		}
+		return Math.abs (query.hashCode () % 1000000);
+	}
+}
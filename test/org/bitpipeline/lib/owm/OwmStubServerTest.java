@@ -0,0 +1,63 @@
+package org.bitpipeline.lib.owm;
+
+/** Checks that the OwmStubServer can be used for load testing over pooled connections.
+ * Run as a program: it throws an AssertionError on the first check that fails. */
+public class OwmStubServerTest {
+	static private final long BASE_TIME = 1500000000L;
+
+	public static void main (String[] args) throws Exception {
+		OwmStubServerTest.conditionalRequestsKeepTheConnection ();
+		OwmStubServerTest.errorsKeepTheConnection ();
+		System.out.println ("OwmStubServerTest passed");
+	}
+
+	/** Repeated queries for an unchanged response are answered with 304, which must leave
+	 * the pooled keep-alive connection usable for the next query */
+	static void conditionalRequestsKeepTheConnection () throws Exception {
+		OwmStubServer stub = new OwmStubServer (OwmStubServerTest.BASE_TIME);
+		stub.start ();
+		try {
+			OwmClient client = new OwmClient ();
+			client.setBaseUrl (stub.getBaseUrl ());
+			client.setRetryPolicy (1, 0, 0); // A reset connection fails the query instead of being retried
+			String subUrl = QueryBuilder.query ("forecast").param ("lat", 52.2f).param ("lon", 0.12f).build ();
+			for (int i = 0; i < 10; i++)
+				OwmStubServerTest.check (client.doQuery (subUrl) != null, "query " + i + " has no response");
+			OwmStubServerTest.check (client.getStats ().getCacheHits () == 9,
+					"9 queries should be answered with 304, got " + client.getStats ().getCacheHits ());
+			OwmStubServerTest.check (stub.getRequests () == 10, "the stub should get 10 queries, got " + stub.getRequests ());
+		} finally {
+			stub.stop ();
+		}
+	}
+
+	/** Injected 503 errors are replies without a body too, and must only fail their own query */
+	static void errorsKeepTheConnection () throws Exception {
+		OwmStubServer stub = new OwmStubServer (OwmStubServerTest.BASE_TIME);
+		stub.setErrorRate (0.5);
+		stub.start ();
+		try {
+			OwmClient client = new OwmClient ();
+			client.setBaseUrl (stub.getBaseUrl ());
+			client.setRetryPolicy (1, 0, 0);
+			int failed = 0;
+			for (int i = 0; i < 20; i++) {
+				try {
+					client.doQuery (QueryBuilder.query ("forecast").param ("lat", 52.2f).param ("lon", (float) i).build ());
+				} catch (OwmHttpException e) {
+					OwmStubServerTest.check (e.getStatusCode () == 503, "query " + i + " failed with " + e.getStatusCode ());
+					failed++;
+				}
+			}
+			OwmStubServerTest.check (failed == stub.getErrors (),
+					failed + " queries failed, but the stub injected " + stub.getErrors () + " errors");
+		} finally {
+			stub.stop ();
+		}
+	}
+
+	static private void check (boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError (message);
+	}
+}